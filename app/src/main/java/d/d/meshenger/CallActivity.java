@@ -89,6 +89,7 @@ public class CallActivity extends MeshengerActivity implements ServiceConnection
                         //findViewById(R.id.localRenderer)
                     );
                     currentCall.setRemoteRenderer(findViewById(R.id.remoteRenderer));
+                    binder.setCurrentCall(currentCall);
                 }
 
                 @Override
@@ -355,6 +356,7 @@ public class CallActivity extends MeshengerActivity implements ServiceConnection
         currentCall.cleanup();
 
         this.binder.addCallEvent(this.contact, this.callEventType);
+        this.binder.releaseCurrentCall(currentCall);
 
         //if (binder != null) {
             unbindService(connection);
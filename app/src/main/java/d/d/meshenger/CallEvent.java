@@ -5,6 +5,7 @@ import java.util.Date;
 
 
 class CallEvent {
+    // the order is stored in the event log, add new types at the end
     enum Type {
         OUTGOING_UNKNOWN,
         OUTGOING_ACCEPTED,
@@ -30,6 +31,13 @@ class CallEvent {
         this.date = new Date();
     }
 
+    public CallEvent(byte[] pubKey, InetAddress address, Type type, Date date) {
+        this.pubKey = pubKey;
+        this.address = address;
+        this.type = type;
+        this.date = date;
+    }
+
     public boolean isMissedCall() {
         return this.type == CallEvent.Type.INCOMING_UNKNOWN
             || this.type == CallEvent.Type.INCOMING_MISSED
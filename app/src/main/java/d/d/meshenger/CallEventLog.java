@@ -0,0 +1,479 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.SodiumConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+
+/*
+* Call history stored next to the database.
+*
+* The file is a ring buffer with a fixed number of slots, the oldest
+* event is overwritten when it is full. With a database password,
+* each slot is encrypted on its own with the key of the database.
+*
+* File format:
+*   header: [magic][version][encrypted][capacity][next][count][salt]
+*   slot:   [nonce + encrypted record] or [record]
+*   record: [time][type][public key][address length][address]
+*
+* Time, type and a hash of the public key of each slot are kept in
+* memory, so counting missed calls and filtering needs no file access.
+* Memory use only depends on the capacity.
+*/
+class CallEventLog {
+    static final String SUFFIX = ".events";
+    static final int DEFAULT_CAPACITY = 1000;
+
+    private static final byte[] MAGIC = {'M', 'E', 'V', 'L'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SALT_OFFSET = 20;
+    private static final int KEY_SIZE = SodiumConstants.PUBLICKEY_BYTES;
+    private static final int RECORD_SIZE = 8 + 1 + KEY_SIZE + 1 + 16;
+    // invalid or unreadable slot
+    private static final byte NO_TYPE = -1;
+
+    private final File file;
+    private final int defaultCapacity;
+    // copy of the database key and salt
+    private byte[] key;
+    private byte[] salt;
+    private RandomAccessFile raf;
+
+    private int capacity;
+    // slot of the next event
+    private int next;
+    private int count;
+    private long[] times;
+    private byte[] types;
+    private int[] hashes;
+    // cached result of getLatest()
+    private List<CallEvent> latest;
+    private int latestLimit;
+
+    CallEventLog(String databasePath, int capacity) {
+        this.file = new File(databasePath + SUFFIX);
+        this.defaultCapacity = capacity;
+        this.key = null;
+        this.salt = null;
+        this.raf = null;
+        this.capacity = 0;
+        this.next = 0;
+        this.count = 0;
+    }
+
+    /*
+    * Open the log for the database key (null without password).
+    * A log that cannot be read with the key is started anew.
+    */
+    synchronized void open(Crypto.DatabaseKey key) throws IOException {
+        close();
+        setKeyCopy(key);
+
+        this.raf = new RandomAccessFile(this.file, "rw");
+        if (!readHeader()) {
+            log("invalid or foreign event log => start new log");
+            create(this.defaultCapacity);
+            return;
+        }
+
+        allocateIndex(this.capacity);
+        byte[] slot = new byte[getSlotSize()];
+
+        for (int n = 0; n < this.count; n += 1) {
+            int i = slotIndex(n);
+            this.raf.seek(slotOffset(i));
+            this.raf.readFully(slot);
+            ByteBuffer record = decode(slot);
+            if (record != null) {
+                this.times[i] = record.getLong(0);
+                this.types[i] = record.get(8);
+                this.hashes[i] = hashKey(record.array(), 9);
+                Arrays.fill(record.array(), (byte) 0);
+            }
+        }
+
+        log("loaded " + this.count + " call events");
+    }
+
+    synchronized void add(CallEvent event) throws IOException {
+        if (this.raf == null) {
+            throw new IOException("event log not open");
+        }
+
+        write(event);
+        this.raf.getFD().sync();
+    }
+
+    // write event and header, the slot is only used after the header has been written
+    private void write(CallEvent event) throws IOException {
+        if (event.pubKey == null || event.pubKey.length != KEY_SIZE) {
+            throw new IOException("invalid public key");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(event.date.getTime());
+        record.put((byte) event.type.ordinal());
+        record.put(event.pubKey);
+        byte[] address = (event.address != null) ? event.address.getAddress() : new byte[0];
+        record.put((byte) address.length);
+        record.put(address);
+
+        byte[] slot = encode(record.array());
+        Arrays.fill(record.array(), (byte) 0);
+
+        int i = this.next;
+        this.raf.seek(slotOffset(i));
+        this.raf.write(slot);
+
+        this.times[i] = event.date.getTime();
+        this.types[i] = (byte) event.type.ordinal();
+        this.hashes[i] = hashKey(event.pubKey, 0);
+        this.next = (this.next + 1) % this.capacity;
+        this.count = Math.min(this.count + 1, this.capacity);
+        appendLatest(event);
+
+        writeHeader();
+    }
+
+    /*
+    * Events from newest to oldest with from <= time < to.
+    * If publicKey is not null, only events of that contact are returned.
+    */
+    synchronized List<CallEvent> query(long from, long to, byte[] publicKey, int offset, int limit) throws IOException {
+        List<CallEvent> events = new ArrayList<>();
+        if (this.raf == null) {
+            return events;
+        }
+
+        int hash = (publicKey != null) ? hashKey(publicKey, 0) : 0;
+        byte[] slot = new byte[getSlotSize()];
+        int skipped = 0;
+
+        for (int n = this.count - 1; n >= 0 && events.size() < limit; n -= 1) {
+            int i = slotIndex(n);
+            if (this.types[i] == NO_TYPE || this.times[i] < from || this.times[i] >= to) {
+                continue;
+            }
+
+            if (publicKey != null && this.hashes[i] != hash) {
+                continue;
+            }
+
+            this.raf.seek(slotOffset(i));
+            this.raf.readFully(slot);
+            CallEvent event = toEvent(decode(slot));
+            if (event == null) {
+                continue;
+            }
+
+            if (publicKey != null && !Arrays.equals(publicKey, event.pubKey)) {
+                continue;
+            }
+
+            if (skipped < offset) {
+                skipped += 1;
+                continue;
+            }
+
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    // immutable list of the latest events, oldest first
+    synchronized List<CallEvent> getLatest(int limit) throws IOException {
+        if (this.latest == null || this.latestLimit != limit) {
+            List<CallEvent> events = query(0, Long.MAX_VALUE, null, 0, limit);
+            Collections.reverse(events);
+            this.latest = Collections.unmodifiableList(events);
+            this.latestLimit = limit;
+        }
+        return this.latest;
+    }
+
+    /*
+    * Extend the cached latest events by the event just written. The
+    * events already listed are kept, so the event list can tell the
+    * appended events apart by identity.
+    */
+    private void appendLatest(CallEvent event) {
+        List<CallEvent> latest = this.latest;
+        if (latest == null || this.capacity <= this.latestLimit) {
+            // the overwritten slot might be listed
+            this.latest = null;
+            return;
+        }
+
+        if (latest.size() < this.latestLimit && this.count == this.capacity) {
+            // unreadable slots, the overwritten event might be listed
+            this.latest = null;
+            return;
+        }
+
+        int drop = (latest.size() >= this.latestLimit) ? 1 : 0;
+        List<CallEvent> events = new ArrayList<>(latest.size() + 1 - drop);
+        events.addAll(latest.subList(drop, latest.size()));
+        events.add(event);
+        this.latest = Collections.unmodifiableList(events);
+    }
+
+    // missed calls since the given time
+    synchronized int countMissedCalls(long since) {
+        int missed = 0;
+        for (int n = 0; n < this.count; n += 1) {
+            int i = slotIndex(n);
+            if (this.types[i] != NO_TYPE && this.times[i] >= since && isMissedCall(this.types[i])) {
+                missed += 1;
+            }
+        }
+        return missed;
+    }
+
+    synchronized int size() {
+        return this.count;
+    }
+
+    synchronized void clear() throws IOException {
+        if (this.raf != null) {
+            create(this.capacity);
+        }
+    }
+
+    /*
+    * Encrypt all events with a new key, e.g. after the
+    * database password has changed. The key may be null.
+    * The new log is written to a temporary file that replaces
+    * the old log, so a crash leaves either of them intact.
+    */
+    synchronized void setKey(Crypto.DatabaseKey key) throws IOException {
+        if (this.raf == null) {
+            setKeyCopy(key);
+            return;
+        }
+
+        List<CallEvent> events = query(0, Long.MAX_VALUE, null, 0, this.capacity);
+        File temp = new File(this.file.getPath() + ".tmp");
+
+        this.raf.close();
+        this.raf = new RandomAccessFile(temp, "rw");
+        setKeyCopy(key);
+
+        try {
+            create(this.capacity);
+            for (int i = events.size() - 1; i >= 0; i -= 1) {
+                write(events.get(i));
+            }
+            this.raf.getFD().sync();
+            this.raf.close();
+            this.raf = null;
+
+            if (!temp.renameTo(this.file)) {
+                throw new IOException("Failed to rename temporary file: " + temp);
+            }
+            Utils.syncDirectory(this.file.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            // the old log is still intact, but cannot be used with the new key
+            close();
+            temp.delete();
+            throw e;
+        }
+
+        this.raf = new RandomAccessFile(this.file, "rw");
+    }
+
+    // close file and zero key
+    synchronized void close() {
+        if (this.raf != null) {
+            try {
+                this.raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.raf = null;
+        }
+
+        setKeyCopy(null);
+    }
+
+    private void create(int capacity) throws IOException {
+        this.latest = null;
+        this.capacity = capacity;
+        this.next = 0;
+        this.count = 0;
+        allocateIndex(capacity);
+
+        this.raf.setLength(0);
+        writeHeader();
+        this.raf.getFD().sync();
+    }
+
+    private void allocateIndex(int capacity) {
+        this.times = new long[capacity];
+        this.types = new byte[capacity];
+        this.hashes = new int[capacity];
+        Arrays.fill(this.types, NO_TYPE);
+    }
+
+    private boolean readHeader() throws IOException {
+        if (this.raf.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        byte[] data = new byte[HEADER_SIZE];
+        this.raf.seek(0);
+        this.raf.readFully(data);
+        ByteBuffer header = ByteBuffer.wrap(data);
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        int version = header.get();
+        boolean encrypted = (header.get() != 0);
+        header.getShort();
+        int capacity = header.getInt();
+        int next = header.getInt();
+        int count = header.getInt();
+
+        if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+            return false;
+        }
+
+        if (encrypted != (this.key != null) || capacity <= 0 || next < 0 || next >= capacity || count < 0 || count > capacity) {
+            return false;
+        }
+
+        if (encrypted) {
+            byte[] salt = Arrays.copyOfRange(data, SALT_OFFSET, SALT_OFFSET + this.salt.length);
+            if (!Arrays.equals(salt, this.salt)) {
+                // written with another key
+                return false;
+            }
+        }
+
+        this.capacity = capacity;
+        this.next = next;
+        this.count = count;
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) (this.key != null ? 1 : 0));
+        header.putShort((short) 0);
+        header.putInt(this.capacity);
+        header.putInt(this.next);
+        header.putInt(this.count);
+        if (this.salt != null) {
+            header.put(this.salt);
+        }
+
+        this.raf.seek(0);
+        this.raf.write(header.array());
+    }
+
+    private byte[] encode(byte[] record) throws IOException {
+        if (this.key == null) {
+            return record.clone();
+        }
+
+        byte[] encrypted = Crypto.encryptWithKey(record, this.key);
+        if (encrypted == null) {
+            throw new IOException("event encryption failed");
+        }
+        return encrypted;
+    }
+
+    private ByteBuffer decode(byte[] slot) {
+        byte[] record = (this.key != null) ? Crypto.decryptWithKey(slot, this.key) : slot.clone();
+        if (record == null || record.length != RECORD_SIZE) {
+            return null;
+        }
+        return ByteBuffer.wrap(record);
+    }
+
+    private static CallEvent toEvent(ByteBuffer record) {
+        if (record == null) {
+            return null;
+        }
+
+        CallEvent.Type[] types = CallEvent.Type.values();
+        long time = record.getLong();
+        int type = record.get();
+        byte[] publicKey = new byte[KEY_SIZE];
+        record.get(publicKey);
+        int length = record.get();
+        byte[] address = new byte[Math.max(0, Math.min(length, 16))];
+        record.get(address);
+        Arrays.fill(record.array(), (byte) 0);
+
+        if (type < 0 || type >= types.length) {
+            return null;
+        }
+
+        InetAddress inetAddress = null;
+        if (address.length > 0) {
+            try {
+                inetAddress = InetAddress.getByAddress(address);
+            } catch (UnknownHostException e) {
+                // ignore
+            }
+        }
+
+        return new CallEvent(publicKey, inetAddress, types[type], new Date(time));
+    }
+
+    private static boolean isMissedCall(byte type) {
+        return type == CallEvent.Type.INCOMING_UNKNOWN.ordinal()
+            || type == CallEvent.Type.INCOMING_MISSED.ordinal()
+            || type == CallEvent.Type.INCOMING_ERROR.ordinal();
+    }
+
+    private static int hashKey(byte[] data, int offset) {
+        int hash = 1;
+        for (int i = 0; i < KEY_SIZE; i += 1) {
+            hash = 31 * hash + data[offset + i];
+        }
+        return hash;
+    }
+
+    // n-th event from the oldest
+    private int slotIndex(int n) {
+        return (this.next - this.count + n + this.capacity) % this.capacity;
+    }
+
+    private long slotOffset(int i) {
+        return HEADER_SIZE + (long) i * getSlotSize();
+    }
+
+    private int getSlotSize() {
+        return (this.key != null)
+            ? (SodiumConstants.NONCE_BYTES + SodiumConstants.MAC_BYTES + RECORD_SIZE)
+            : RECORD_SIZE;
+    }
+
+    private void setKeyCopy(Crypto.DatabaseKey key) {
+        if (this.key != null) {
+            Arrays.fill(this.key, (byte) 0);
+        }
+        this.key = (key != null) ? key.getKey().clone() : null;
+        this.salt = (key != null) ? key.getSalt().clone() : null;
+    }
+
+    private static void log(String s) {
+        Log.d("CallEventLog", s);
+    }
+}
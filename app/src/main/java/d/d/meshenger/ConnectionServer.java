@@ -0,0 +1,529 @@
+package d.d.meshenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+* Accept and read incoming connections on a single selector thread.
+* Complete messages are handed to a small worker pool. While a worker
+* handles the messages of a connection, no more data is read from it.
+* Replies that do not fit into the socket buffer are queued and written
+* by the selector thread, so workers never wait for a slow peer.
+*/
+class ConnectionServer implements Runnable {
+    static final int MAX_CONNECTIONS = 64;
+    static final int WORKER_THREADS = 4;
+    static final long IDLE_TIMEOUT_MS = 30 * 1000;
+    // close a connection if queued replies make no progress for this long
+    static final long WRITE_TIMEOUT_MS = 5 * 1000;
+    // queued replies per connection
+    static final int MAX_PENDING_BYTES = 4 + FrameDecoder.MAX_FRAME_SIZE;
+
+    interface Handler {
+        // called on a worker thread, return false to close the connection
+        boolean onMessage(Connection connection, byte[] message) throws Exception;
+
+        // connection was closed by the peer, the handler or the idle timeout
+        void onClose(Connection connection);
+
+        // connection was closed because onMessage() failed
+        void onError(Connection connection, Exception e);
+    }
+
+    /*
+    * State of a single client connection.
+    */
+    static class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remoteAddress;
+        private final ConnectionServer server;
+        // only accessed by the selector thread
+        private final FrameDecoder decoder;
+        private SelectionKey key;
+        private long lastActivity;
+        private boolean busy;
+        private boolean closed;
+        // close when the queued replies have been written
+        private boolean closing;
+        // only accessed by the worker that handles the connection
+        private final ByteBuffer header;
+        private final ByteBuffer[] srcs;
+        // replies the socket did not take yet, guarded by itself
+        private final ArrayDeque<ByteBuffer> pending;
+        private int pendingBytes;
+        // time of the last write progress while replies are queued
+        private long pendingSince;
+        // continuation after detach(), runs on a worker thread
+        private volatile DetachListener detachListener;
+
+        // per connection state of the handler
+        byte[] clientPublicKey;
+        Contact contact;
+        boolean multiplexed;
+        Crypto.Session session;
+
+        Connection(ConnectionServer server, SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.server = server;
+            this.decoder = new FrameDecoder(true);
+            this.lastActivity = System.currentTimeMillis();
+            this.busy = false;
+            this.closed = false;
+            this.closing = false;
+            this.header = ByteBuffer.allocate(4);
+            this.srcs = new ByteBuffer[]{this.header, null};
+            this.pending = new ArrayDeque<>();
+            this.pendingBytes = 0;
+            this.pendingSince = 0;
+        }
+
+        // send a message, called from the worker that handles this connection
+        void send(byte[] message) throws IOException {
+            send(ByteBuffer.wrap(message));
+        }
+
+        /*
+        * Send the remaining bytes of message. Does not block, what the
+        * socket does not take is queued and written by the selector thread.
+        */
+        void send(ByteBuffer message) throws IOException {
+            int length = message.remaining();
+            this.header.clear();
+            this.header.putInt(length);
+            this.header.flip();
+
+            synchronized (this.pending) {
+                if ((this.pendingBytes + 4 + length) > MAX_PENDING_BYTES) {
+                    throw new IOException("peer does not read");
+                }
+
+                if (this.pending.isEmpty()) {
+                    this.srcs[1] = message;
+                    try {
+                        this.channel.write(this.srcs);
+                    } finally {
+                        this.srcs[1] = null;
+                    }
+
+                    if (!this.header.hasRemaining() && !message.hasRemaining()) {
+                        return;
+                    }
+                    this.pendingSince = System.currentTimeMillis();
+                }
+
+                // copy the rest, the caller may reuse message
+                ByteBuffer rest = ByteBuffer.allocate(this.header.remaining() + message.remaining());
+                rest.put(this.header);
+                rest.put(message);
+                rest.flip();
+                this.pending.add(rest);
+                this.pendingBytes += rest.remaining();
+            }
+
+            this.server.post(() -> this.server.updateInterest(this));
+        }
+
+        boolean hasPending() {
+            synchronized (this.pending) {
+                return !this.pending.isEmpty();
+            }
+        }
+
+        // write queued replies, returns true when all have been written
+        private boolean writePending() throws IOException {
+            synchronized (this.pending) {
+                ByteBuffer head;
+                while ((head = this.pending.peek()) != null) {
+                    int written = this.channel.write(head);
+                    if (written > 0) {
+                        this.pendingBytes -= written;
+                        this.pendingSince = System.currentTimeMillis();
+                    }
+                    if (head.hasRemaining()) {
+                        return false;
+                    }
+                    this.pending.poll();
+                }
+                return true;
+            }
+        }
+
+        private boolean isWriteTimeout(long now) {
+            synchronized (this.pending) {
+                return !this.pending.isEmpty() && (now - this.pendingSince) > WRITE_TIMEOUT_MS;
+            }
+        }
+
+        /*
+        * Stop serving this connection and switch it to blocking mode.
+        * The listener is called on a worker thread with the plain socket.
+        */
+        void detach(DetachListener listener) {
+            this.detachListener = listener;
+        }
+    }
+
+    interface DetachListener {
+        void onDetached(Socket socket) throws Exception;
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final Set<Connection> connections;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean run;
+
+    ConnectionServer(int port, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = Executors.newFixedThreadPool(WORKER_THREADS);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connections = new HashSet<>();
+        this.run = false;
+    }
+
+    // bind the listening socket, throws if the port is not available
+    void open() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().setReuseAddress(true);
+        this.serverChannel.socket().bind(new InetSocketAddress(this.port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.run = true;
+    }
+
+    boolean isRunning() {
+        return this.run;
+    }
+
+    void close() {
+        this.run = false;
+        if (this.selector != null) {
+            this.selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.run) {
+                this.selector.select(1000);
+
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        write(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        shutdown();
+    }
+
+    // a failed client must not stop the server
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = this.serverChannel.accept();
+        } catch (IOException e) {
+            // e.g. too many open files or connection reset
+            log("accept failed: " + e.getMessage());
+            return;
+        }
+
+        if (channel == null) {
+            return;
+        }
+
+        if (this.connections.size() >= MAX_CONNECTIONS) {
+            log("too many connections => reject " + channel.socket().getRemoteSocketAddress());
+            closeQuietly(channel);
+            return;
+        }
+
+        try {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(this, channel);
+            if (connection.remoteAddress == null) {
+                // already disconnected
+                closeQuietly(channel);
+                return;
+            }
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            this.connections.add(connection);
+            log("incoming connection from " + connection.remoteAddress);
+        } catch (IOException e) {
+            log("cannot register connection: " + e.getMessage());
+            closeQuietly(channel);
+        }
+    }
+
+    private void read(Connection connection) {
+        int read;
+        try {
+            read = connection.decoder.readFrom(connection.channel);
+        } catch (IOException e) {
+            read = -1;
+        }
+
+        if (read < 0) {
+            close(connection, true);
+            return;
+        }
+
+        connection.lastActivity = System.currentTimeMillis();
+
+        List<byte[]> messages = new ArrayList<>();
+        ByteBuffer frame;
+        while ((frame = connection.decoder.nextFrame()) != null) {
+            byte[] message = new byte[frame.remaining()];
+            frame.get(message);
+            messages.add(message);
+        }
+
+        if (messages.isEmpty()) {
+            if (connection.decoder.isInvalid()) {
+                log("invalid message size");
+                close(connection, true);
+            }
+            return;
+        }
+
+        // pause reading until the worker is done
+        connection.busy = true;
+        updateInterest(connection);
+        this.workers.execute(() -> dispatch(connection, messages));
+    }
+
+    private void write(Connection connection) {
+        boolean done;
+        try {
+            done = connection.writePending();
+        } catch (IOException e) {
+            close(connection, true);
+            return;
+        }
+
+        if (done && connection.closing) {
+            close(connection, true);
+        } else {
+            updateInterest(connection);
+        }
+    }
+
+    // read unless a worker is busy with the connection, write while replies are queued
+    private void updateInterest(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+
+        int ops = (connection.busy || connection.closing) ? 0 : SelectionKey.OP_READ;
+        if (connection.hasPending()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    // close after the queued replies have been written
+    private void closeAfterWrite(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+
+        if (connection.hasPending()) {
+            connection.closing = true;
+            updateInterest(connection);
+        } else {
+            close(connection, true);
+        }
+    }
+
+    // runs on a worker thread
+    private void dispatch(Connection connection, List<byte[]> messages) {
+        try {
+            for (byte[] message : messages) {
+                boolean keep = this.handler.onMessage(connection, message);
+
+                if (connection.detachListener != null) {
+                    post(() -> detach(connection));
+                    return;
+                }
+
+                if (!keep) {
+                    post(() -> closeAfterWrite(connection));
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            post(() -> {
+                close(connection, false);
+                this.handler.onError(connection, e);
+            });
+            return;
+        }
+
+        post(() -> resume(connection));
+    }
+
+    private void resume(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+
+        if (connection.decoder.isInvalid()) {
+            close(connection, true);
+            return;
+        }
+
+        connection.busy = false;
+        connection.lastActivity = System.currentTimeMillis();
+        updateInterest(connection);
+    }
+
+    private void detach(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+
+        this.connections.remove(connection);
+        connection.closed = true;
+        connection.key.cancel();
+
+        try {
+            // deregister the channel before it can be switched to blocking mode
+            this.selector.selectNow();
+            connection.channel.configureBlocking(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(connection.channel);
+            this.handler.onError(connection, e);
+            return;
+        }
+
+        DetachListener listener = connection.detachListener;
+        this.workers.execute(() -> {
+            try {
+                // the channel is blocking now, queued replies go out first
+                connection.writePending();
+                listener.onDetached(connection.channel.socket());
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeQuietly(connection.channel);
+                this.handler.onError(connection, e);
+            }
+        });
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<>(this.connections)) {
+            if (connection.isWriteTimeout(now)) {
+                log("write timeout for " + connection.remoteAddress);
+                close(connection, true);
+            } else if (!connection.busy && !connection.hasPending() && (now - connection.lastActivity) > IDLE_TIMEOUT_MS) {
+                log("idle timeout for " + connection.remoteAddress);
+                close(connection, true);
+            }
+        }
+    }
+
+    private void close(Connection connection, boolean notify) {
+        if (connection.closed) {
+            return;
+        }
+
+        connection.closed = true;
+        this.connections.remove(connection);
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+
+        if (notify) {
+            this.handler.onClose(connection);
+        }
+    }
+
+    // run task on the selector thread
+    private void post(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    private void shutdown() {
+        this.run = false;
+
+        for (Connection connection : new ArrayList<>(this.connections)) {
+            close(connection, false);
+        }
+
+        this.workers.shutdown();
+
+        try {
+            this.serverChannel.close();
+            this.selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
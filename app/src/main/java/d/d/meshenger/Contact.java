@@ -6,12 +6,11 @@ import org.json.JSONArray;
 import org.libsodium.jni.Sodium;
 
 import java.io.Serializable;
-import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class Contact implements Serializable {
@@ -19,14 +18,14 @@ public class Contact implements Serializable {
 
     private String name;
     private byte[] pubkey;
-    private boolean blocked;
+    private volatile boolean blocked;
     private List<String> addresses;
 
-    // contact state
-    private State state = State.PENDING;
+    // contact state, updated by ping and connection threads
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
 
     // last working address (use this address next connection and for unknown contact initialization)
-    private InetSocketAddress last_working_address = null;
+    private volatile InetSocketAddress last_working_address = null;
 
     public Contact(String name, byte[] pubkey, List<String> addresses) {
         this.name = name;
@@ -43,11 +42,16 @@ public class Contact implements Serializable {
     }
 
     public State getState() {
-        return state;
+        return this.state.get();
     }
 
     public void setState(State state) {
-        this.state = state;
+        this.state.set(state);
+    }
+
+    // returns the previous state
+    public State getAndSetState(State state) {
+        return this.state.getAndSet(state);
     }
 
     public List<String> getAddresses() {
@@ -106,57 +110,19 @@ public class Contact implements Serializable {
         this.blocked = blocked;
     }
 
-    private static Socket establishConnection(InetSocketAddress address, int timeout) {
-        Socket socket = new Socket();
-        try {
-            // timeout to establish connection
-            socket.connect(address, timeout);
-            return socket;
-        } catch (SocketTimeoutException e) {
-            // ignore
-        } catch (ConnectException e) {
-            // device is online, but does not listen on the given port
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (Exception e) {
-                // ignore
-            }
-        }
-
-        return null;
-    }
-
     /*
     * Create a connection to the contact.
-    * Try/Remember the last successful address.
+    * All addresses are raced against each other, starting
+    * with the last successful address.
     */
     public Socket createSocket() {
-        Socket socket = null;
-        int connectionTimeout = 500;
-
         // try last successful address first
-        if (this.last_working_address != null) {
-            log("try latest address: " + this.last_working_address);
-            socket = this.establishConnection(this.last_working_address, connectionTimeout);
-            if (socket != null) {
-                return socket;
-            }
-        }
-
-        for (InetSocketAddress address : this.getAllSocketAddresses()) {
-            log("try address: '" + address.getHostName() + "', port: " + address.getPort());
-            socket = this.establishConnection(address, connectionTimeout);
-            if (socket != null) {
-                return socket;
-            }
+        InetSocketAddress latest = this.last_working_address;
+        if (latest != null) {
+            log("try latest address: " + latest);
         }
 
-        return null;
+        return Dialer.connect(latest, this.getAllSocketAddresses());
     }
 
     // set good address to try first next time
@@ -11,59 +11,197 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 
 class ContactListAdapter extends ArrayAdapter<Contact> {
-    private List<Contact> contacts;
+    // size of contact_state in item_contact.xml
+    private static final int STATE_ICON_DP = 40;
+    // key is size, state and blocked flag
+    private static final HashMap<Integer, Bitmap> stateBitmaps = new HashMap<>();
+
+    // replaced on the main thread, read by the worker of ContactListFragment
+    private volatile List<Row> rows;
+    // position of each contact, only used on the main thread
+    private HashMap<ContactRegistry.Key, Integer> positions;
     private Context context;
 
     private LayoutInflater inflater;
+    private final int iconSize;
 
-    public ContactListAdapter(@NonNull Context context, int resource, @NonNull List<Contact> contacts) {
-        super(context, resource, contacts);
-        this.contacts = contacts;
+    private static final class ViewHolder {
+        final TextView name;
+        final View waiting;
+        final ImageView state;
+
+        ViewHolder(View view) {
+            this.name = view.findViewById(R.id.contact_name);
+            this.waiting = view.findViewById(R.id.contact_waiting);
+            this.state = view.findViewById(R.id.contact_state);
+        }
+    }
+
+    // what is shown of a contact
+    static final class Row implements ListDiff.Row {
+        final Contact contact;
+        final ContactRegistry.Key key;
+        final String name;
+        final Contact.State state;
+        final boolean blocked;
+
+        Row(Contact contact) {
+            this.contact = contact;
+            this.key = new ContactRegistry.Key(contact.getPublicKey());
+            this.name = contact.getName();
+            this.state = contact.getState();
+            this.blocked = contact.getBlocked();
+        }
+
+        @Override
+        public Object getId() {
+            return this.key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Row)) {
+                return false;
+            }
+            Row other = (Row) obj;
+            return this.key.equals(other.key)
+                && this.state == other.state
+                && this.blocked == other.blocked
+                && (this.name == null ? other.name == null : this.name.equals(other.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.key.hashCode();
+        }
+    }
+
+    public ContactListAdapter(@NonNull Context context, int resource) {
+        super(context, resource);
+        this.rows = Collections.emptyList();
+        this.positions = new HashMap<>();
         this.context = context;
+        this.iconSize = Math.round(STATE_ICON_DP * context.getResources().getDisplayMetrics().density);
 
         inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
-    @NonNull
-    @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-        Contact contact = contacts.get(position);
+    static List<Row> toRows(List<Contact> contacts) {
+        List<Row> rows = new ArrayList<>(contacts.size());
+        for (Contact contact : contacts) {
+            rows.add(new Row(contact));
+        }
+        return Collections.unmodifiableList(rows);
+    }
 
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.item_contact, null);
+    // immutable, can be read from any thread
+    List<Row> getRows() {
+        return this.rows;
+    }
+
+    /*
+    * Show the new rows. Only changed rows are bound again
+    * if no rows were added, removed or moved.
+    */
+    void apply(ListView listView, ListDiff<Row> diff) {
+        if (diff.oldRows != this.rows) {
+            // rows have changed since the diff was computed
+            setRows(diff.newRows);
+            notifyDataSetChanged();
+            return;
         }
 
-        ((TextView) convertView.findViewById(R.id.contact_name)).setText(contact.getName());
+        if (diff.isEmpty()) {
+            return;
+        }
 
-        if (contact.getState() != Contact.State.PENDING) {
-            convertView.findViewById(R.id.contact_waiting).setVisibility(View.GONE);
-            ImageView state = convertView.findViewById(R.id.contact_state);
-            state.setVisibility(View.VISIBLE);
-            Bitmap bitmap = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            Paint p = new Paint();
+        setRows(diff.newRows);
 
-            if (contact.getState() == Contact.State.ONLINE) {
-                p.setColor(0xFF7AE12D); // green
-            } else {
-                p.setColor(0xFFEC3E3E); // red
+        if (diff.structural) {
+            notifyDataSetChanged();
+        } else {
+            for (int position : diff.changed) {
+                ListDiff.rebindRow(listView, this, position);
             }
+        }
+    }
 
-            canvas.drawCircle(100, 100, 100, p);
+    // the state of a single contact has changed
+    void updateContact(ListView listView, byte[] publicKey) {
+        Integer position = this.positions.get(new ContactRegistry.Key(publicKey));
+        if (position == null) {
+            return;
+        }
 
-            if (contact.getBlocked()) {
-                // draw smaller red circle on top
-                p.setColor(0xFFEC3E3E); // red
-                canvas.drawCircle(100, 100, 70, p);
-            }
+        Row row = new Row(this.rows.get(position).contact);
+        if (row.equals(this.rows.get(position))) {
+            return;
+        }
+
+        List<Row> rows = new ArrayList<>(this.rows);
+        rows.set(position, row);
+        this.rows = Collections.unmodifiableList(rows);
+        ListDiff.rebindRow(listView, this, position);
+    }
 
-            state.setImageBitmap(bitmap);
+    private void setRows(List<Row> rows) {
+        HashMap<ContactRegistry.Key, Integer> positions = new HashMap<>(rows.size() * 2);
+        for (int i = 0; i < rows.size(); i += 1) {
+            positions.put(rows.get(i).key, i);
+        }
+        this.rows = rows;
+        this.positions = positions;
+    }
+
+    @Override
+    public int getCount() {
+        return this.rows.size();
+    }
+
+    @Override
+    public Contact getItem(int position) {
+        return this.rows.get(position).contact;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @NonNull
+    @Override
+    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
+        Row row = this.rows.get(position);
+        ViewHolder holder;
+
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.item_contact, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        holder.name.setText(row.name);
+
+        if (row.state != Contact.State.PENDING) {
+            holder.waiting.setVisibility(View.GONE);
+            holder.state.setVisibility(View.VISIBLE);
+            holder.state.setImageBitmap(getStateBitmap(row.state, row.blocked, this.iconSize));
+        } else {
+            // the view might have been used for another contact
+            holder.waiting.setVisibility(View.VISIBLE);
+            holder.state.setVisibility(View.GONE);
         }
 /*
         if (contact.recent) {
@@ -76,6 +214,40 @@ class ContactListAdapter extends ArrayAdapter<Contact> {
         return convertView;
     }
 
+    /*
+    * Bitmaps are rendered once and shared by all rows.
+    * Only used on the main thread.
+    */
+    private static Bitmap getStateBitmap(Contact.State state, boolean blocked, int size) {
+        int key = (size << 3) | (state.ordinal() << 1) | (blocked ? 1 : 0);
+        Bitmap bitmap = stateBitmaps.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint p = new Paint(Paint.ANTI_ALIAS_FLAG);
+        float center = size / 2f;
+
+        if (state == Contact.State.ONLINE) {
+            p.setColor(0xFF7AE12D); // green
+        } else {
+            p.setColor(0xFFEC3E3E); // red
+        }
+
+        canvas.drawCircle(center, center, center, p);
+
+        if (blocked) {
+            // draw smaller red circle on top
+            p.setColor(0xFFEC3E3E); // red
+            canvas.drawCircle(center, center, center * 0.7f, p);
+        }
+
+        stateBitmaps.put(key, bitmap);
+        return bitmap;
+    }
+
     private void log(String s) {
         Log.d(this, s);
     }
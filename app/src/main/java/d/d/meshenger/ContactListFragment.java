@@ -24,6 +24,8 @@ import android.widget.PopupMenu;
 import org.json.JSONException;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.os.Looper.getMainLooper;
 
@@ -35,6 +37,9 @@ public class ContactListFragment extends Fragment implements AdapterView.OnItemC
     private FloatingActionButton fabGen;
     private FloatingActionButton fab;
     private MainActivity mainActivity;
+    private ContactListAdapter contactListAdapter;
+    // computes list changes
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
 
     @Nullable
     @Override
@@ -52,6 +57,11 @@ public class ContactListFragment extends Fragment implements AdapterView.OnItemC
         fabGen.setOnClickListener(v -> startActivity(new Intent(this.mainActivity, QRShowActivity.class)));
         fab.setOnClickListener(this::runFabAnimation);
 
+        contactListAdapter = new ContactListAdapter(this.mainActivity, R.layout.item_contact);
+        contactListView.setAdapter(contactListAdapter);
+        contactListView.setOnItemClickListener(this);
+        contactListView.setOnItemLongClickListener(this::onItemLongClick);
+
         refreshContactList();
 
         return view;
@@ -136,64 +146,93 @@ public class ContactListFragment extends Fragment implements AdapterView.OnItemC
         alert.show();
     }
 
+    // apply a change sent by the service
+    void onContactsChanged(Intent intent) {
+        String change = intent.getStringExtra(MainService.EXTRA_CHANGE);
+        byte[] publicKey = intent.getByteArrayExtra(MainService.EXTRA_PUBLIC_KEY);
+
+        if (MainService.CHANGE_CONTACT_STATE.equals(change) && publicKey != null && this.contactListAdapter != null) {
+            // bind a single row, no list rebuild
+            new Handler(getMainLooper()).post(() -> {
+                this.contactListAdapter.updateContact(this.contactListView, publicKey);
+            });
+            return;
+        }
+
+        // CHANGE_CONTACT_ADDED (also sent for changed contacts), CHANGE_CONTACT_REMOVED
+        // and states of several contacts, ListDiff finds the rows to update
+        refreshContactList();
+    }
+
     void refreshContactList() {
         log("refreshContactList");
-        if (this.mainActivity == null || this.mainActivity.binder == null) {
+        if (this.mainActivity == null || this.mainActivity.binder == null || this.contactListAdapter == null || this.worker.isShutdown()) {
             log("refreshContactList early return");
             return;
         }
 
-        new Handler(getMainLooper()).post(() -> {
-            List<Contact> contacts = ContactListFragment.this.mainActivity.binder.getContactsCopy();
-            contactListView.setAdapter(new ContactListAdapter(ContactListFragment.this.mainActivity, R.layout.item_contact, contacts));
-            contactListView.setOnItemClickListener(ContactListFragment.this);
-            contactListView.setOnItemLongClickListener((AdapterView<?> adapterView, View view, int i, long l) -> {
-                Contact contact = contacts.get(i);
-                PopupMenu menu = new PopupMenu(ContactListFragment.this.mainActivity, view);
-                Resources res = getResources();
-                String delete = res.getString(R.string.delete);
-                String rename = res.getString(R.string.rename);
-                String block = res.getString(R.string.block);
-                String unblock = res.getString(R.string.unblock);
-                String share = res.getString(R.string.share);
-                String qr = "QR-ify";
-
-                menu.getMenu().add(delete);
-                menu.getMenu().add(rename);
-                menu.getMenu().add(share);
-                if (contact.getBlocked()) {
-                    menu.getMenu().add(unblock);
-                } else {
-                    menu.getMenu().add(block);
-                }
-                menu.getMenu().add(qr);
-
-                menu.setOnMenuItemClickListener((MenuItem menuItem) -> {
-                    String title = menuItem.getTitle().toString();
-                    byte[] publicKey = contact.getPublicKey();
-                    if (title.equals(delete)) {
-                        showDeleteDialog(publicKey, contact.getName());
-                    } else if (title.equals(rename)) {
-                        showContactEditDialog(publicKey, contact.getName());
-                    } else if (title.equals(share)) {
-                        shareContact(contact);
-                    } else if (title.equals(block)) {
-                        setBlocked(publicKey, true);
-                    } else if (title.equals(unblock)) {
-                        setBlocked(publicKey, false);
-                    } else if (title.equals(qr)) {
-                        Intent intent = new Intent(ContactListFragment.this.mainActivity, QRShowActivity.class);
-                        intent.putExtra("EXTRA_CONTACT", contact);
-                        startActivity(intent);
-                    }
-                    return false;
-                });
-                menu.show();
-                return true;
+        MainService.MainBinder binder = this.mainActivity.binder;
+        ContactListAdapter adapter = this.contactListAdapter;
+
+        // compare with the shown rows in the background
+        this.worker.execute(() -> {
+            List<ContactListAdapter.Row> rows = ContactListAdapter.toRows(binder.getContactsCopy());
+            ListDiff<ContactListAdapter.Row> diff = ListDiff.compute(adapter.getRows(), rows);
+            if (diff.isEmpty()) {
+                return;
+            }
+
+            new Handler(getMainLooper()).post(() -> {
+                adapter.apply(this.contactListView, diff);
             });
         });
     }
 
+    private boolean onItemLongClick(AdapterView<?> adapterView, View view, int i, long l) {
+        Contact contact = this.contactListAdapter.getItem(i);
+        PopupMenu menu = new PopupMenu(ContactListFragment.this.mainActivity, view);
+        Resources res = getResources();
+        String delete = res.getString(R.string.delete);
+        String rename = res.getString(R.string.rename);
+        String block = res.getString(R.string.block);
+        String unblock = res.getString(R.string.unblock);
+        String share = res.getString(R.string.share);
+        String qr = "QR-ify";
+
+        menu.getMenu().add(delete);
+        menu.getMenu().add(rename);
+        menu.getMenu().add(share);
+        if (contact.getBlocked()) {
+            menu.getMenu().add(unblock);
+        } else {
+            menu.getMenu().add(block);
+        }
+        menu.getMenu().add(qr);
+
+        menu.setOnMenuItemClickListener((MenuItem menuItem) -> {
+            String title = menuItem.getTitle().toString();
+            byte[] publicKey = contact.getPublicKey();
+            if (title.equals(delete)) {
+                showDeleteDialog(publicKey, contact.getName());
+            } else if (title.equals(rename)) {
+                showContactEditDialog(publicKey, contact.getName());
+            } else if (title.equals(share)) {
+                shareContact(contact);
+            } else if (title.equals(block)) {
+                setBlocked(publicKey, true);
+            } else if (title.equals(unblock)) {
+                setBlocked(publicKey, false);
+            } else if (title.equals(qr)) {
+                Intent intent = new Intent(ContactListFragment.this.mainActivity, QRShowActivity.class);
+                intent.putExtra("EXTRA_CONTACT", contact);
+                startActivity(intent);
+            }
+            return false;
+        });
+        menu.show();
+        return true;
+    }
+
     private void setBlocked(byte[] publicKey, boolean blocked) {
         Contact contact = this.mainActivity.binder.getContactByPublicKey(publicKey);
         if (contact != null) {
@@ -240,10 +279,16 @@ public class ContactListFragment extends Fragment implements AdapterView.OnItemC
         collapseFab();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        this.worker.shutdownNow();
+    }
+
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
         log("onItemClick");
-        Contact contact = this.mainActivity.binder.getContactsCopy().get(i);
+        Contact contact = this.contactListAdapter.getItem(i);
         Intent intent = new Intent(this.mainActivity, CallActivity.class);
         intent.setAction("ACTION_OUTGOING_CALL");
         intent.putExtra("EXTRA_CONTACT", contact);
@@ -0,0 +1,141 @@
+package d.d.meshenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+
+/*
+* Contacts of the database, indexed by public key and by name.
+*
+* Every change publishes a new immutable state (list and indexes), so
+* lookups and iteration need no lock and never see a partial change.
+* Changes are rare compared to lookups (every incoming packet).
+*/
+class ContactRegistry implements Iterable<Contact> {
+
+    /*
+    * Public key as map key. The hash is computed once.
+    * The array is not copied, it must not be modified
+    * while it is in the registry.
+    */
+    static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.hash == other.hash && Arrays.equals(this.bytes, other.bytes);
+        }
+    }
+
+    private static final class State {
+        final List<Contact> list;
+        final HashMap<Key, Contact> byKey;
+        // first contact of a name
+        final HashMap<String, Contact> byName;
+
+        State(ArrayList<Contact> list) {
+            this.list = Collections.unmodifiableList(list);
+            this.byKey = new HashMap<>(list.size() * 2);
+            this.byName = new HashMap<>(list.size() * 2);
+
+            for (Contact contact : list) {
+                this.byKey.put(new Key(contact.getPublicKey()), contact);
+                if (contact.getName() != null && !this.byName.containsKey(contact.getName())) {
+                    this.byName.put(contact.getName(), contact);
+                }
+            }
+        }
+    }
+
+    private volatile State state = new State(new ArrayList<Contact>());
+
+    Contact get(byte[] publicKey) {
+        if (publicKey == null) {
+            return null;
+        }
+        return this.state.byKey.get(new Key(publicKey));
+    }
+
+    Contact getByName(String name) {
+        if (name == null) {
+            return null;
+        }
+        return this.state.byName.get(name);
+    }
+
+    boolean contains(byte[] publicKey) {
+        return get(publicKey) != null;
+    }
+
+    // add contact or replace the contact with the same public key
+    synchronized void put(Contact contact) {
+        ArrayList<Contact> list = new ArrayList<>(this.state.list.size() + 1);
+        boolean replaced = false;
+        for (Contact c : this.state.list) {
+            if (!replaced && Arrays.equals(c.getPublicKey(), contact.getPublicKey())) {
+                list.add(contact);
+                replaced = true;
+            } else {
+                list.add(c);
+            }
+        }
+        if (!replaced) {
+            list.add(contact);
+        }
+        this.state = new State(list);
+    }
+
+    // add several contacts, e.g. when the database is loaded
+    synchronized void putAll(List<Contact> contacts) {
+        ArrayList<Contact> list = new ArrayList<>(this.state.list);
+        list.addAll(contacts);
+        this.state = new State(list);
+    }
+
+    // returns the removed contact
+    synchronized Contact remove(byte[] publicKey) {
+        Contact contact = get(publicKey);
+        if (contact != null) {
+            ArrayList<Contact> list = new ArrayList<>(this.state.list);
+            list.remove(contact);
+            this.state = new State(list);
+        }
+        return contact;
+    }
+
+    // immutable list in insertion order
+    List<Contact> snapshot() {
+        return this.state.list;
+    }
+
+    int size() {
+        return this.state.list.size();
+    }
+
+    @Override
+    public Iterator<Contact> iterator() {
+        return this.state.list.iterator();
+    }
+}
@@ -0,0 +1,327 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.Sodium;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Long lived connection to a contact that carries many messages.
+*
+* The connection is opened with a control_open message. If the contact
+* answers with control_ack, every following packet is prefixed with a
+* four byte stream id. A response uses the stream id of the request.
+* Contacts that do not know control_open do not answer.
+*
+* Both messages also carry an ephemeral key to set up a Crypto.Session,
+* later messages are then encrypted with the session key.
+*/
+class ControlChannel implements Runnable {
+    static final int RESPONSE_TIMEOUT_MS = 5000;
+    // do not retry a contact that did not answer control_open for some time
+    static final long UNSUPPORTED_RETRY_MS = 10 * 60 * 1000;
+    // marker for requests that were interrupted by close()
+    private static final Message CLOSED = new Message(null);
+
+    private final Contact contact;
+    private final byte[] ownPublicKey;
+    private final byte[] ownSecretKey;
+    private final Map<Integer, BlockingQueue<Message>> pending;
+    private Socket socket;
+    private PacketWriter pw;
+    private PacketReader pr;
+    private Crypto.Session session;
+    private int nextStreamId;
+    private volatile long lastUsed;
+    private long unsupportedSince;
+
+    ControlChannel(Contact contact, byte[] ownPublicKey, byte[] ownSecretKey) {
+        this.contact = contact;
+        this.ownPublicKey = ownPublicKey;
+        this.ownSecretKey = ownSecretKey;
+        this.pending = new ConcurrentHashMap<>();
+        this.socket = null;
+        this.session = null;
+        this.nextStreamId = 1;
+        this.lastUsed = System.currentTimeMillis();
+        this.unsupportedSince = 0;
+    }
+
+    Contact getContact() {
+        return this.contact;
+    }
+
+    synchronized boolean isOpen() {
+        return this.socket != null;
+    }
+
+    // the contact does not support control channels (yet)
+    synchronized boolean isUnsupported() {
+        return (System.currentTimeMillis() - this.unsupportedSince) < UNSUPPORTED_RETRY_MS;
+    }
+
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /*
+    * Open connection if needed. Throws if the contact cannot be reached,
+    * returns false if the contact does not support control channels.
+    */
+    synchronized boolean open() throws IOException {
+        if (this.socket != null) {
+            return true;
+        }
+
+        if (isUnsupported()) {
+            return false;
+        }
+
+        Socket socket = this.contact.createSocket();
+        if (socket == null) {
+            throw new IOException("contact not reachable");
+        }
+
+        Crypto.Session session = new Crypto.Session();
+
+        try {
+            PacketWriter pw = new PacketWriter(socket);
+            PacketReader pr = new PacketReader(socket);
+
+            byte[] request = Message.controlOpen(session.getPublicKey()).encodeFor(this.contact.getPublicKey());
+            byte[] encrypted = Crypto.encryptMessage(request, this.contact.getPublicKey(), this.ownPublicKey, this.ownSecretKey);
+            if (encrypted == null) {
+                throw new IOException("encryption failed");
+            }
+            pw.writeMessage(encrypted);
+
+            // older versions ignore the message
+            socket.setSoTimeout(RESPONSE_TIMEOUT_MS);
+            Message response = decrypt(pr.readMessage());
+            socket.setSoTimeout(0);
+
+            if (response == null || !response.is(Message.Action.CONTROL_ACK)) {
+                log("control channel not supported by " + this.contact.getName());
+                this.unsupportedSince = System.currentTimeMillis();
+                session.destroy();
+                closeQuietly(socket);
+                return false;
+            }
+
+            // without session key, every message is signed and encrypted on its own
+            if (response.sessionKey != null && session.establish(response.sessionKey, true)) {
+                this.session = session;
+            } else {
+                session.destroy();
+            }
+
+            InetSocketAddress remote_address = (InetSocketAddress) socket.getRemoteSocketAddress();
+            this.contact.setLastWorkingAddress(
+                new InetSocketAddress(remote_address.getAddress(), MainService.serverPort)
+            );
+
+            this.socket = socket;
+            this.pw = pw;
+            this.pr = pr;
+        } catch (SocketTimeoutException e) {
+            log("no response to control_open from " + this.contact.getName());
+            this.unsupportedSince = System.currentTimeMillis();
+            session.destroy();
+            closeQuietly(socket);
+            return false;
+        } catch (Exception e) {
+            session.destroy();
+            closeQuietly(socket);
+            throw new IOException(e.getMessage());
+        }
+
+        log("control channel opened to " + this.contact.getName());
+        new Thread(this).start();
+        return true;
+    }
+
+    /*
+    * Send a message and wait for the response.
+    * Returns null on timeout.
+    */
+    Message request(Message message) throws IOException {
+        this.lastUsed = System.currentTimeMillis();
+        return await(message);
+    }
+
+    // ping that does not count as usage of the channel
+    Message keepalive() throws IOException {
+        return await(Message.ping());
+    }
+
+    private Message await(Message message) throws IOException {
+        BlockingQueue<Message> response = new ArrayBlockingQueue<>(1);
+        int streamId = send(message, response);
+
+        try {
+            Message received = response.poll(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return (received == CLOSED) ? null : received;
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            this.pending.remove(streamId);
+        }
+    }
+
+    // send a message without waiting for a response
+    void send(Message message) throws IOException {
+        this.lastUsed = System.currentTimeMillis();
+        send(message, null);
+    }
+
+    private int send(Message message, BlockingQueue<Message> response) throws IOException {
+        synchronized (this) {
+            if (this.socket == null) {
+                throw new IOException("control channel closed");
+            }
+
+            // encrypt in send order, the session counter must increase
+            byte[] data = message.encodeFor(this.contact.getPublicKey());
+            byte[] encrypted;
+            if (this.session != null) {
+                encrypted = this.session.encrypt(data);
+            } else {
+                encrypted = Crypto.encryptMessage(data, this.contact.getPublicKey(), this.ownPublicKey, this.ownSecretKey);
+            }
+
+            if (encrypted == null) {
+                throw new IOException("encryption failed");
+            }
+
+            int streamId = this.nextStreamId;
+            this.nextStreamId += 2;
+            if (response != null) {
+                this.pending.put(streamId, response);
+            }
+
+            byte[] packet = new byte[4 + encrypted.length];
+            ByteBuffer.wrap(packet).putInt(streamId).put(encrypted);
+
+            try {
+                this.pw.writeMessage(packet);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            return streamId;
+        }
+    }
+
+    synchronized void close() {
+        if (this.socket != null) {
+            log("control channel closed to " + this.contact.getName());
+            closeQuietly(this.socket);
+            this.socket = null;
+            this.pw = null;
+            this.pr = null;
+        }
+
+        if (this.session != null) {
+            this.session.destroy();
+            this.session = null;
+        }
+
+        // wake up waiting requests
+        for (BlockingQueue<Message> response : this.pending.values()) {
+            response.offer(CLOSED);
+        }
+        this.pending.clear();
+    }
+
+    // read responses
+    @Override
+    public void run() {
+        PacketReader pr;
+        Crypto.Session session;
+        synchronized (this) {
+            pr = this.pr;
+            session = this.session;
+        }
+
+        try {
+            while (pr != null) {
+                ByteBuffer frame = pr.readFrame();
+                if (frame == null || frame.remaining() < 4) {
+                    break;
+                }
+
+                int streamId = frame.getInt();
+                byte[] message = new byte[frame.remaining()];
+                frame.get(message);
+
+                Message received = (session != null) ? decode(session.decryptData(message)) : decrypt(message);
+                if (received == null) {
+                    log("decryption failed");
+                    break;
+                }
+
+                BlockingQueue<Message> response = this.pending.remove(streamId);
+                if (response != null) {
+                    response.offer(received);
+                }
+            }
+        } catch (IOException e) {
+            // connection lost
+        }
+
+        synchronized (this) {
+            if (this.pr == pr) {
+                close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    // decrypt message and check sender
+    private Message decrypt(byte[] message) {
+        if (message == null) {
+            return null;
+        }
+
+        byte[] otherPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] decrypted = Crypto.decryptData(message, otherPublicKey, this.ownPublicKey, this.ownSecretKey);
+        if (decrypted == null || !Arrays.equals(this.contact.getPublicKey(), otherPublicKey)) {
+            return null;
+        }
+        return decode(decrypted);
+    }
+
+    private Message decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+
+        Message message = Message.decode(data);
+        if (message != null) {
+            Message.setVersion(this.contact.getPublicKey(), message.version);
+        }
+        return message;
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
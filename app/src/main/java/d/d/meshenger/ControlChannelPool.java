@@ -0,0 +1,133 @@
+package d.d.meshenger;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Holds one control channel per contact. Open channels are kept
+* alive with pings, reconnected when the connection was lost and
+* closed when they have not been used for a while. Channels of
+* contacts that cannot be reached are dropped, PingScheduler
+* decides when to try them again.
+*/
+class ControlChannelPool {
+    static final long KEEPALIVE_MS = 20 * 1000;
+    static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private final MainService.MainBinder binder;
+    private final PingScheduler pingScheduler;
+    // key is the hex encoded public key
+    private final ConcurrentHashMap<String, ControlChannel> channels;
+    // started by the first get(), stopped by shutdown()
+    private ScheduledExecutorService keepalive;
+
+    ControlChannelPool(MainService.MainBinder binder, PingScheduler pingScheduler) {
+        this.binder = binder;
+        this.pingScheduler = pingScheduler;
+        this.channels = new ConcurrentHashMap<>();
+        this.keepalive = null;
+    }
+
+    // get channel, it might not be open yet
+    ControlChannel get(Contact contact, byte[] ownPublicKey, byte[] ownSecretKey) {
+        startKeepalive();
+
+        String key = Utils.byteArrayToHexString(contact.getPublicKey());
+        ControlChannel channel = this.channels.get(key);
+        if (channel == null) {
+            channel = new ControlChannel(contact, ownPublicKey, ownSecretKey);
+            ControlChannel existing = this.channels.putIfAbsent(key, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    // get channel if it is open already
+    ControlChannel getOpen(Contact contact) {
+        ControlChannel channel = this.channels.get(Utils.byteArrayToHexString(contact.getPublicKey()));
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        return null;
+    }
+
+    private synchronized void startKeepalive() {
+        if (this.keepalive == null) {
+            this.keepalive = Executors.newSingleThreadScheduledExecutor();
+            this.keepalive.scheduleWithFixedDelay(this::keepalive, KEEPALIVE_MS, KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void keepalive() {
+        if (!this.binder.getSettings().getPersistentConnections()) {
+            log("persistent connections disabled");
+            shutdown();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ControlChannel> entry : new ArrayList<>(this.channels.entrySet())) {
+            ControlChannel channel = entry.getValue();
+            byte[] publicKey = channel.getContact().getPublicKey();
+
+            if ((now - channel.getLastUsed()) > IDLE_TIMEOUT_MS) {
+                log("close idle control channel");
+                remove(entry.getKey(), channel);
+                continue;
+            }
+
+            // do not dial contacts that were offline recently
+            if (!channel.isOpen() && this.pingScheduler.isBackedOff(publicKey)) {
+                remove(entry.getKey(), channel);
+                continue;
+            }
+
+            try {
+                // reconnects a lost connection
+                if (!channel.open()) {
+                    remove(entry.getKey(), channel);
+                    continue;
+                }
+
+                Message response = channel.keepalive();
+                if (response != null && response.is(Message.Action.PONG)) {
+                    this.binder.setContactState(publicKey, Contact.State.ONLINE);
+                } else {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                // the next ping round dials the contact again
+                remove(entry.getKey(), channel);
+                this.binder.setContactState(publicKey, Contact.State.OFFLINE);
+            }
+        }
+    }
+
+    private void remove(String key, ControlChannel channel) {
+        channel.close();
+        this.channels.remove(key, channel);
+    }
+
+    // close all channels, called on exit and when persistent connections are disabled
+    synchronized void shutdown() {
+        if (this.keepalive != null) {
+            this.keepalive.shutdownNow();
+            this.keepalive = null;
+        }
+        for (ControlChannel channel : this.channels.values()) {
+            channel.close();
+        }
+        this.channels.clear();
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
@@ -3,6 +3,7 @@ package d.d.meshenger;
 import org.libsodium.jni.Sodium;
 import org.libsodium.jni.SodiumConstants;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -11,12 +12,124 @@ class Crypto {
     // for development / testing only
     private static boolean disable_crypto = false;
 
+    /*
+    * Key derived from the database password. It is derived once
+    * and used for all stores until the password changes.
+    *
+    * The key is never changed after creation. Everyone who keeps or
+    * uses it outside the lock of its owner works on an own copy(), so
+    * destroy() never zeroes a key that is still in use.
+    */
+    static class DatabaseKey {
+        // keyed hash of the password, not the password itself
+        private final byte[] passwordHash;
+        private final byte[] salt;
+        private final byte[] key;
+
+        private DatabaseKey(byte[] passwordHash, byte[] salt, byte[] key) {
+            this.passwordHash = passwordHash;
+            this.salt = salt;
+            this.key = key;
+        }
+
+        // derive key for a salt, this is slow
+        static DatabaseKey derive(byte[] password, byte[] salt) {
+            byte[] key = deriveKey(password, salt);
+            if (key == null) {
+                return null;
+            }
+            return new DatabaseKey(hashPassword(password, salt), salt.clone(), key);
+        }
+
+        // derive key for a new salt
+        static DatabaseKey create(byte[] password) {
+            byte[] salt = new byte[Sodium.crypto_pwhash_saltbytes()];
+            Sodium.randombytes_buf(salt, salt.length);
+            return derive(password, salt);
+        }
+
+        // independent copy, the caller destroys it
+        DatabaseKey copy() {
+            return new DatabaseKey(this.passwordHash.clone(), this.salt.clone(), this.key.clone());
+        }
+
+        // fast, does not derive the key again
+        boolean matches(byte[] password) {
+            byte[] hash = hashPassword(password, this.salt);
+            boolean equal = Arrays.equals(this.passwordHash, hash);
+            Arrays.fill(hash, (byte) 0);
+            return equal;
+        }
+
+        boolean hasSalt(byte[] salt) {
+            return Arrays.equals(this.salt, salt);
+        }
+
+        byte[] getSalt() {
+            return this.salt;
+        }
+
+        byte[] getKey() {
+            return this.key;
+        }
+
+        // zero key material
+        void destroy() {
+            Arrays.fill(this.passwordHash, (byte) 0);
+            Arrays.fill(this.salt, (byte) 0);
+            Arrays.fill(this.key, (byte) 0);
+        }
+
+        private static byte[] hashPassword(byte[] password, byte[] salt) {
+            byte[] hash = new byte[Sodium.crypto_generichash_bytes()];
+            Sodium.crypto_generichash(hash, hash.length, password, password.length, salt, salt.length);
+            return hash;
+        }
+    }
+
+    // get the salt of an encrypted database
+    static byte[] getDatabaseSalt(byte[] encrypted_message) {
+        if (encrypted_message == null || encrypted_message.length <= (4 + Sodium.crypto_pwhash_saltbytes() + SodiumConstants.NONCE_BYTES + SodiumConstants.MAC_BYTES)) {
+            return null;
+        }
+
+        byte[] salt = new byte[Sodium.crypto_pwhash_saltbytes()];
+        System.arraycopy(encrypted_message, 4, salt, 0, salt.length);
+        return salt;
+    }
+
     // decrypt database using a password
     public static byte[] decryptDatabase(byte[] encrypted_message, byte[] password) {
         if (encrypted_message == null || password == null) {
             return null;
         }
 
+        if (disable_crypto) {
+            return encrypted_message;
+        }
+
+        byte[] salt = getDatabaseSalt(encrypted_message);
+        if (salt == null) {
+            return null;
+        }
+
+        // hash password into key
+        DatabaseKey key = DatabaseKey.derive(password, salt);
+        if (key == null) {
+            return null;
+        }
+
+        byte[] decrypted = decryptDatabase(encrypted_message, key);
+        key.destroy();
+        return decrypted;
+    }
+
+    // decrypt database using a derived key
+    static byte[] decryptDatabase(byte[] encrypted_message, DatabaseKey key) {
+        if (encrypted_message == null || key == null) {
+            return null;
+        }
+
         if (encrypted_message.length <= (4 + Sodium.crypto_pwhash_saltbytes() + SodiumConstants.NONCE_BYTES + SodiumConstants.MAC_BYTES)) {
             return null;
         }
@@ -35,30 +148,22 @@ class Crypto {
         System.arraycopy(encrypted_message, header.length + salt.length, nonce, 0, nonce.length);
         System.arraycopy(encrypted_message, header.length + salt.length + nonce.length, encrypted_data, 0, encrypted_data.length);
 
-        // expect header to be 0
-        if (!(header[0] == 0 && header[1] == 0 && header[2] == 0 && header[3] == 0)) {
+        // expect header to be 0 and the key to be derived for this salt
+        if (!(header[0] == 0 && header[1] == 0 && header[2] == 0 && header[3] == 0) || !key.hasSalt(salt)) {
             return null;
         }
 
-        // hash password into key
-        byte[] key = new byte[Sodium.crypto_box_seedbytes()];
-        int rc1 = Sodium.crypto_pwhash(key, key.length, password, password.length, salt,
-            Sodium.crypto_pwhash_opslimit_interactive(),
-            Sodium.crypto_pwhash_memlimit_interactive(),
-            Sodium.crypto_pwhash_alg_default());
-
         // decrypt
         byte[] decrypted_data = new byte[encrypted_data.length - SodiumConstants.MAC_BYTES];
-        int rc2 = Sodium.crypto_secretbox_open_easy(decrypted_data, encrypted_data, encrypted_data.length, nonce, key);
+        int rc = Sodium.crypto_secretbox_open_easy(decrypted_data, encrypted_data, encrypted_data.length, nonce, key.getKey());
 
         // zero own memory
         Arrays.fill(header, (byte) 0);
         Arrays.fill(salt, (byte) 0);
-        Arrays.fill(key, (byte) 0);
         Arrays.fill(nonce, (byte) 0);
         Arrays.fill(encrypted_data, (byte) 0);
 
-        if (rc1 == 0 && rc2 == 0) {
+        if (rc == 0) {
             return decrypted_data;
         } else {
             Arrays.fill(decrypted_data, (byte) 0);
@@ -77,15 +182,25 @@ class Crypto {
         }
 
         // hash password into key
-        byte[] salt = new byte[Sodium.crypto_pwhash_saltbytes()];
-        Sodium.randombytes_buf(salt, salt.length);
+        DatabaseKey key = DatabaseKey.create(password);
+        if (key == null) {
+            return null;
+        }
 
-        // hash password into key
-        byte[] key = new byte[Sodium.crypto_box_seedbytes()];
-        int rc1 = Sodium.crypto_pwhash(key, key.length, password, password.length, salt,
-                Sodium.crypto_pwhash_opslimit_interactive(),
-                Sodium.crypto_pwhash_memlimit_interactive(),
-                Sodium.crypto_pwhash_alg_default());
+        byte[] encrypted = encryptDatabase(data, key);
+        key.destroy();
+        return encrypted;
+    }
+
+    // encrypt database using a derived key, only the nonce changes
+    static byte[] encryptDatabase(byte[] data, DatabaseKey key) {
+        if (data == null || key == null) {
+            return null;
+        }
+
+        if (disable_crypto) {
+            return data;
+        }
 
         byte[] header = new byte[4];
         header[0] = 0;
@@ -93,13 +208,15 @@ class Crypto {
         header[2] = 0;
         header[3] = 0;
 
+        byte[] salt = key.getSalt();
+
         // create nonce
         byte[] nonce = new byte[SodiumConstants.NONCE_BYTES];
         Sodium.randombytes_buf(nonce, nonce.length);
 
         // encrypt
         byte[] encrypted_data = new byte[SodiumConstants.MAC_BYTES + data.length];
-        int rc2 = Sodium.crypto_secretbox_easy(encrypted_data, data, data.length, nonce, key);
+        int rc = Sodium.crypto_secretbox_easy(encrypted_data, data, data.length, nonce, key.getKey());
 
         // prepend header, salt and nonce
         byte[] encrypted_message = new byte[header.length + salt.length + nonce.length + encrypted_data.length];
@@ -110,12 +227,10 @@ class Crypto {
 
         // zero own memory
         Arrays.fill(header, (byte) 0);
-        Arrays.fill(salt, (byte) 0);
-        Arrays.fill(key, (byte) 0);
         Arrays.fill(nonce, (byte) 0);
         Arrays.fill(encrypted_data, (byte) 0);
 
-        if (rc1 == 0 && rc2 == 0) {
+        if (rc == 0) {
             return encrypted_message;
         } else {
             Arrays.fill(encrypted_message, (byte) 0);
@@ -123,13 +238,74 @@ class Crypto {
         }
     }
 
+    // derive a key from the database password, this is slow
+    static byte[] deriveKey(byte[] password, byte[] salt) {
+        if (password == null || salt == null || salt.length != Sodium.crypto_pwhash_saltbytes()) {
+            return null;
+        }
+
+        byte[] key = new byte[Sodium.crypto_box_seedbytes()];
+        int rc = Sodium.crypto_pwhash(key, key.length, password, password.length, salt,
+            Sodium.crypto_pwhash_opslimit_interactive(),
+            Sodium.crypto_pwhash_memlimit_interactive(),
+            Sodium.crypto_pwhash_alg_default());
+
+        if (rc != 0) {
+            Arrays.fill(key, (byte) 0);
+            return null;
+        }
+        return key;
+    }
+
+    // encrypt using a derived key, the result is the nonce followed by the encrypted data
+    static byte[] encryptWithKey(byte[] data, byte[] key) {
+        if (data == null || key == null) {
+            return null;
+        }
+
+        byte[] encrypted = new byte[SodiumConstants.NONCE_BYTES + SodiumConstants.MAC_BYTES + data.length];
+        byte[] nonce = new byte[SodiumConstants.NONCE_BYTES];
+        byte[] encrypted_data = new byte[SodiumConstants.MAC_BYTES + data.length];
+        Sodium.randombytes_buf(nonce, nonce.length);
+
+        int rc = Sodium.crypto_secretbox_easy(encrypted_data, data, data.length, nonce, key);
+        if (rc != 0) {
+            return null;
+        }
+
+        System.arraycopy(nonce, 0, encrypted, 0, nonce.length);
+        System.arraycopy(encrypted_data, 0, encrypted, nonce.length, encrypted_data.length);
+        return encrypted;
+    }
+
+    static byte[] decryptWithKey(byte[] encrypted, byte[] key) {
+        if (encrypted == null || key == null || encrypted.length < (SodiumConstants.NONCE_BYTES + SodiumConstants.MAC_BYTES)) {
+            return null;
+        }
+
+        byte[] nonce = new byte[SodiumConstants.NONCE_BYTES];
+        byte[] encrypted_data = new byte[encrypted.length - nonce.length];
+        System.arraycopy(encrypted, 0, nonce, 0, nonce.length);
+        System.arraycopy(encrypted, nonce.length, encrypted_data, 0, encrypted_data.length);
+
+        byte[] decrypted = new byte[encrypted_data.length - SodiumConstants.MAC_BYTES];
+        int rc = Sodium.crypto_secretbox_open_easy(decrypted, encrypted_data, encrypted_data.length, nonce, key);
+        if (rc != 0) {
+            return null;
+        }
+        return decrypted;
+    }
+
     public static byte[] encryptMessage(String message, byte[] otherPublicKey, byte[] ownPublicKey, byte[] ownSecretKey) {
+        return encryptMessage(message.getBytes(), otherPublicKey, ownPublicKey, ownSecretKey);
+    }
+
+    public static byte[] encryptMessage(byte[] message, byte[] otherPublicKey, byte[] ownPublicKey, byte[] ownSecretKey) {
         if (disable_crypto) {
-            return message.getBytes();
+            return message;
         }
 
-        byte[] message_bytes = message.getBytes();
-        byte[] signed = sign(message_bytes, ownSecretKey);
+        byte[] signed = sign(message, ownSecretKey);
         if (signed == null) {
             return null;
         }
@@ -142,12 +318,21 @@ class Crypto {
     }
 
     public static String decryptMessage(byte[] message, byte[] otherPublicKeySignOut, byte[] ownPublicKey, byte[] ownSecretKey) {
+        byte[] data = decryptData(message, otherPublicKeySignOut, ownPublicKey, ownSecretKey);
+        if (data == null) {
+            return null;
+        }
+        return new String(data, Charset.forName("UTF-8"));
+    }
+
+    // same as decryptMessage(), but returns the raw content
+    public static byte[] decryptData(byte[] message, byte[] otherPublicKeySignOut, byte[] ownPublicKey, byte[] ownSecretKey) {
         if (otherPublicKeySignOut == null || otherPublicKeySignOut.length != Sodium.crypto_sign_publickeybytes()) {
             return null;
         }
 
         if (disable_crypto) {
-            return new String(message, Charset.forName("UTF-8"));
+            return message;
         }
 
         // make sure this is zeroed
@@ -171,7 +356,7 @@ class Crypto {
             return null;
         }
 
-        return new String(unsignedData, Charset.forName("UTF-8"));
+        return unsignedData;
     }
 
     private static byte[] sign(byte[] data, byte[] secretKey) {
@@ -225,9 +410,7 @@ class Crypto {
         }
 
         byte[] pk_box = new byte[Sodium.crypto_box_publickeybytes()];
-        int rc1 = Sodium.crypto_sign_ed25519_pk_to_curve25519(pk_box, pk_sign);
-
-        if (rc1 != 0 || pk_box == null || pk_box.length != Sodium.crypto_box_publickeybytes()) {
+        if (!KeyCache.getBoxPublicKey(pk_sign, pk_box)) {
             return null;
         }
 
@@ -255,19 +438,19 @@ class Crypto {
             return null;
         }
 
-        // convert signature keys to box keys
+        // signature keys converted to box keys
         byte[] pk_box = new byte[Sodium.crypto_box_publickeybytes()];
         byte[] sk_box = new byte[Sodium.crypto_box_secretkeybytes()];
-        int rc1 = Sodium.crypto_sign_ed25519_pk_to_curve25519(pk_box, pk_sign);
-        int rc2 = Sodium.crypto_sign_ed25519_sk_to_curve25519(sk_box, sk_sign);
-
-        if (rc1 != 0 || rc2 != 0) {
+        if (!KeyCache.getOwnBoxKeyPair(pk_sign, sk_sign, pk_box, sk_box)) {
             return null;
         }
 
         byte[] decrypted = new byte[ciphertext.length - SodiumConstants.SEAL_BYTES];
         int rc = Sodium.crypto_box_seal_open(decrypted, ciphertext, ciphertext.length, pk_box, sk_box);
 
+        // zero own memory
+        Arrays.fill(sk_box, (byte) 0);
+
         if (rc == 0) {
             return decrypted;
         } else {
@@ -275,6 +458,410 @@ class Crypto {
         }
     }
 
+    /*
+    * Reusable memory for the ByteBuffer based methods below, so that
+    * encrypting and decrypting a message does not allocate anything.
+    * The arrays only grow. Not thread safe, use one instance per thread.
+    */
+    static class Scratch {
+        private final byte[] pk_box;
+        private final byte[] sk_box;
+        private final int[] length;
+        private byte[] a;
+        private byte[] b;
+        private byte[] c;
+        private ByteBuffer output;
+
+        Scratch() {
+            this.pk_box = new byte[Sodium.crypto_box_publickeybytes()];
+            this.sk_box = new byte[Sodium.crypto_box_secretkeybytes()];
+            this.length = new int[1];
+            this.a = new byte[0];
+            this.b = new byte[0];
+            this.c = new byte[0];
+            this.output = ByteBuffer.allocate(0);
+        }
+
+        // make room for messages of the given size
+        private void ensure(int size) {
+            if (this.a.length < size) {
+                // keep the box keys, they might have been set for this message already
+                Arrays.fill(this.a, (byte) 0);
+                Arrays.fill(this.b, (byte) 0);
+                Arrays.fill(this.c, (byte) 0);
+                this.a = new byte[size];
+                this.b = new byte[size];
+                this.c = new byte[size];
+            }
+        }
+
+        /*
+        * Cleared buffer owned by this scratch space. It is
+        * valid until the next call to getOutput().
+        */
+        ByteBuffer getOutput(int capacity) {
+            if (this.output.capacity() < capacity) {
+                Arrays.fill(this.output.array(), (byte) 0);
+                this.output = ByteBuffer.allocate(capacity);
+            }
+            this.output.clear();
+            return this.output;
+        }
+
+        // zero all data
+        void zero() {
+            Arrays.fill(this.pk_box, (byte) 0);
+            Arrays.fill(this.sk_box, (byte) 0);
+            Arrays.fill(this.a, (byte) 0);
+            Arrays.fill(this.b, (byte) 0);
+            Arrays.fill(this.c, (byte) 0);
+            Arrays.fill(this.output.array(), (byte) 0);
+        }
+    }
+
+    // size of an encrypted message with the given content length
+    static int getEncryptedMessageSize(int length) {
+        return SodiumConstants.SEAL_BYTES + Sodium.crypto_sign_publickeybytes() + Sodium.crypto_sign_bytes() + length;
+    }
+
+    /*
+    * Same as encryptMessage(), but reads the remaining bytes of message
+    * and writes the result into out. Returns the number of bytes written
+    * or -1 on error.
+    */
+    static int encryptMessage(ByteBuffer message, ByteBuffer out, byte[] otherPublicKey, byte[] ownPublicKey, byte[] ownSecretKey, Scratch scratch) {
+        int length = message.remaining();
+        int size = getEncryptedMessageSize(length);
+
+        if (out.remaining() < size) {
+            return -1;
+        }
+
+        if (disable_crypto) {
+            out.put(message);
+            return length;
+        }
+
+        if (ownPublicKey == null || ownPublicKey.length != Sodium.crypto_sign_publickeybytes()) {
+            return -1;
+        }
+
+        if (ownSecretKey == null || ownSecretKey.length != Sodium.crypto_sign_secretkeybytes()) {
+            return -1;
+        }
+
+        if (!KeyCache.getBoxPublicKey(otherPublicKey, scratch.pk_box)) {
+            return -1;
+        }
+
+        scratch.ensure(size);
+        message.get(scratch.a, 0, length);
+
+        // sign message
+        int signedLength = Sodium.crypto_sign_bytes() + length;
+        int rc1 = Sodium.crypto_sign(scratch.b, scratch.length, scratch.a, length, ownSecretKey);
+        if (rc1 != 0 || scratch.length[0] != signedLength) {
+            Arrays.fill(scratch.a, 0, length, (byte) 0);
+            return -1;
+        }
+
+        // prepend own public key
+        System.arraycopy(ownPublicKey, 0, scratch.c, 0, ownPublicKey.length);
+        System.arraycopy(scratch.b, 0, scratch.c, ownPublicKey.length, signedLength);
+
+        int rc2 = Sodium.crypto_box_seal(scratch.a, scratch.c, ownPublicKey.length + signedLength, scratch.pk_box);
+
+        // zero plaintext
+        Arrays.fill(scratch.b, 0, signedLength, (byte) 0);
+        Arrays.fill(scratch.c, 0, ownPublicKey.length + signedLength, (byte) 0);
+
+        if (rc2 != 0) {
+            return -1;
+        }
+
+        out.put(scratch.a, 0, size);
+        return size;
+    }
+
+    /*
+    * Same as decryptMessage(), but reads the remaining bytes of message
+    * and writes the content into out. Returns the content length
+    * or -1 on error.
+    */
+    static int decryptMessage(ByteBuffer message, ByteBuffer out, byte[] otherPublicKeySignOut, byte[] ownPublicKey, byte[] ownSecretKey, Scratch scratch) {
+        if (otherPublicKeySignOut == null || otherPublicKeySignOut.length != Sodium.crypto_sign_publickeybytes()) {
+            return -1;
+        }
+
+        int size = message.remaining();
+
+        if (disable_crypto) {
+            if (out.remaining() < size) {
+                return -1;
+            }
+            out.put(message);
+            return size;
+        }
+
+        // make sure this is zeroed
+        Arrays.fill(otherPublicKeySignOut, (byte) 0);
+
+        if (size <= getEncryptedMessageSize(0)) {
+            return -1;
+        }
+
+        if (!KeyCache.getOwnBoxKeyPair(ownPublicKey, ownSecretKey, scratch.pk_box, scratch.sk_box)) {
+            return -1;
+        }
+
+        scratch.ensure(size);
+        message.get(scratch.a, 0, size);
+
+        int dataLength = size - SodiumConstants.SEAL_BYTES;
+        int rc1 = Sodium.crypto_box_seal_open(scratch.b, scratch.a, size, scratch.pk_box, scratch.sk_box);
+        Arrays.fill(scratch.sk_box, (byte) 0);
+
+        if (rc1 != 0) {
+            return -1;
+        }
+
+        // split message data in sender public key and content
+        int signedLength = dataLength - otherPublicKeySignOut.length;
+        System.arraycopy(scratch.b, 0, otherPublicKeySignOut, 0, otherPublicKeySignOut.length);
+        System.arraycopy(scratch.b, otherPublicKeySignOut.length, scratch.c, 0, signedLength);
+        Arrays.fill(scratch.b, 0, dataLength, (byte) 0);
+
+        int length = signedLength - Sodium.crypto_sign_bytes();
+        int rc2 = Sodium.crypto_sign_open(scratch.a, scratch.length, scratch.c, signedLength, otherPublicKeySignOut);
+        Arrays.fill(scratch.c, 0, signedLength, (byte) 0);
+
+        if (rc2 != 0 || scratch.length[0] != length || out.remaining() < length) {
+            // signature does not match transmitted public key
+            Arrays.fill(scratch.a, 0, size, (byte) 0);
+            return -1;
+        }
+
+        out.put(scratch.a, 0, length);
+        Arrays.fill(scratch.a, 0, length, (byte) 0);
+        return length;
+    }
+
+    /*
+    * Symmetric encryption for many messages over the same connection.
+    *
+    * Both sides exchange an ephemeral public key inside a signed message
+    * and derive a shared key from it. Messages are encrypted using
+    * crypto_secretbox with a counter based nonce. The counter is sent
+    * along and must increase, so replayed messages are rejected.
+    */
+    static class Session {
+        private static final int COUNTER_BYTES = 8;
+
+        private final byte[] ephemeralPublicKey;
+        private final byte[] ephemeralSecretKey;
+        private final byte[] key;
+        private final byte[] sendNonce;
+        private final byte[] receiveNonce;
+        private long sendCounter;
+        private long receiveCounter;
+        private boolean established;
+
+        Session() {
+            this.ephemeralPublicKey = new byte[Sodium.crypto_box_publickeybytes()];
+            this.ephemeralSecretKey = new byte[Sodium.crypto_box_secretkeybytes()];
+            this.key = new byte[Sodium.crypto_box_beforenmbytes()];
+            this.sendNonce = new byte[SodiumConstants.NONCE_BYTES];
+            this.receiveNonce = new byte[SodiumConstants.NONCE_BYTES];
+            this.sendCounter = 0;
+            this.receiveCounter = 0;
+            this.established = false;
+            Sodium.crypto_box_keypair(this.ephemeralPublicKey, this.ephemeralSecretKey);
+        }
+
+        // public key to be sent inside of a signed message
+        byte[] getPublicKey() {
+            return this.ephemeralPublicKey;
+        }
+
+        /*
+        * Derive the shared key from the ephemeral public key of the other side.
+        * The initiator is the side that opened the connection.
+        */
+        boolean establish(byte[] otherEphemeralPublicKey, boolean initiator) {
+            if (this.established || otherEphemeralPublicKey == null
+                    || otherEphemeralPublicKey.length != Sodium.crypto_box_publickeybytes()) {
+                return false;
+            }
+
+            int rc = Sodium.crypto_box_beforenm(this.key, otherEphemeralPublicKey, this.ephemeralSecretKey);
+            Arrays.fill(this.ephemeralSecretKey, (byte) 0);
+
+            if (rc != 0) {
+                return false;
+            }
+
+            // separate nonce space for each direction
+            this.sendNonce[0] = (byte) (initiator ? 0 : 1);
+            this.receiveNonce[0] = (byte) (initiator ? 1 : 0);
+            this.established = true;
+            return true;
+        }
+
+        boolean isEstablished() {
+            return this.established;
+        }
+
+        byte[] encrypt(String message) {
+            return encrypt(message.getBytes());
+        }
+
+        byte[] encrypt(byte[] data) {
+            if (!this.established) {
+                return null;
+            }
+
+            this.sendCounter += 1;
+            setCounter(this.sendNonce, this.sendCounter);
+
+            // counter followed by the encrypted data
+            byte[] packet = new byte[COUNTER_BYTES + SodiumConstants.MAC_BYTES + data.length];
+            byte[] encrypted = new byte[SodiumConstants.MAC_BYTES + data.length];
+            int rc = Sodium.crypto_secretbox_easy(encrypted, data, data.length, this.sendNonce, this.key);
+            if (rc != 0) {
+                return null;
+            }
+
+            System.arraycopy(this.sendNonce, this.sendNonce.length - COUNTER_BYTES, packet, 0, COUNTER_BYTES);
+            System.arraycopy(encrypted, 0, packet, COUNTER_BYTES, encrypted.length);
+            return packet;
+        }
+
+        String decrypt(byte[] packet) {
+            byte[] data = decryptData(packet);
+            if (data == null) {
+                return null;
+            }
+            return new String(data, Charset.forName("UTF-8"));
+        }
+
+        byte[] decryptData(byte[] packet) {
+            if (!this.established || packet == null || packet.length < (COUNTER_BYTES + SodiumConstants.MAC_BYTES)) {
+                return null;
+            }
+
+            long counter = 0;
+            for (int i = 0; i < COUNTER_BYTES; i += 1) {
+                counter = (counter << 8) | (packet[i] & 0xFF);
+            }
+
+            if (counter <= this.receiveCounter) {
+                log("replayed message");
+                return null;
+            }
+
+            setCounter(this.receiveNonce, counter);
+
+            byte[] encrypted = new byte[packet.length - COUNTER_BYTES];
+            System.arraycopy(packet, COUNTER_BYTES, encrypted, 0, encrypted.length);
+            byte[] decrypted = new byte[encrypted.length - SodiumConstants.MAC_BYTES];
+            int rc = Sodium.crypto_secretbox_open_easy(decrypted, encrypted, encrypted.length, this.receiveNonce, this.key);
+            if (rc != 0) {
+                return null;
+            }
+
+            this.receiveCounter = counter;
+            return decrypted;
+        }
+
+        // size of an encrypted packet with the given content length
+        static int getPacketSize(int length) {
+            return COUNTER_BYTES + SodiumConstants.MAC_BYTES + length;
+        }
+
+        /*
+        * Same as encrypt(), but reads the remaining bytes of message
+        * and writes the packet into out. Returns the number of bytes
+        * written or -1 on error.
+        */
+        int encrypt(ByteBuffer message, ByteBuffer out, Scratch scratch) {
+            int length = message.remaining();
+            int size = getPacketSize(length);
+
+            if (!this.established || out.remaining() < size) {
+                return -1;
+            }
+
+            scratch.ensure(size);
+            message.get(scratch.a, 0, length);
+
+            this.sendCounter += 1;
+            setCounter(this.sendNonce, this.sendCounter);
+
+            int rc = Sodium.crypto_secretbox_easy(scratch.b, scratch.a, length, this.sendNonce, this.key);
+            Arrays.fill(scratch.a, 0, length, (byte) 0);
+            if (rc != 0) {
+                return -1;
+            }
+
+            // counter followed by the encrypted data
+            out.put(this.sendNonce, this.sendNonce.length - COUNTER_BYTES, COUNTER_BYTES);
+            out.put(scratch.b, 0, size - COUNTER_BYTES);
+            return size;
+        }
+
+        /*
+        * Same as decrypt(), but reads the remaining bytes of packet
+        * and writes the content into out. Returns the content length
+        * or -1 on error.
+        */
+        int decrypt(ByteBuffer packet, ByteBuffer out, Scratch scratch) {
+            int size = packet.remaining();
+            if (!this.established || size < getPacketSize(0)) {
+                return -1;
+            }
+
+            int length = size - getPacketSize(0);
+            if (out.remaining() < length) {
+                return -1;
+            }
+
+            long counter = packet.getLong();
+            if (counter <= this.receiveCounter) {
+                log("replayed message");
+                return -1;
+            }
+
+            setCounter(this.receiveNonce, counter);
+
+            scratch.ensure(size);
+            int encryptedLength = size - COUNTER_BYTES;
+            packet.get(scratch.a, 0, encryptedLength);
+
+            int rc = Sodium.crypto_secretbox_open_easy(scratch.b, scratch.a, encryptedLength, this.receiveNonce, this.key);
+            if (rc != 0) {
+                return -1;
+            }
+
+            this.receiveCounter = counter;
+            out.put(scratch.b, 0, length);
+            Arrays.fill(scratch.b, 0, length, (byte) 0);
+            return length;
+        }
+
+        // zero key material
+        void destroy() {
+            this.established = false;
+            Arrays.fill(this.ephemeralSecretKey, (byte) 0);
+            Arrays.fill(this.key, (byte) 0);
+        }
+
+        private static void setCounter(byte[] nonce, long counter) {
+            for (int i = 0; i < COUNTER_BYTES; i += 1) {
+                nonce[nonce.length - 1 - i] = (byte) (counter >> (8 * i));
+            }
+        }
+    }
+
     private static void log(String s) {
         Log.d(Crypto.class.getSimpleName(), s);
     }
@@ -12,38 +12,32 @@ import java.util.Arrays;
 
 class Database {
     Settings settings;
-    ArrayList<Contact> contacts;
-    static String version = "3.1.0"; // current version
+    final ContactRegistry contacts;
+    // last journal record included
+    long journalSequence;
+    // derived from the password, kept for the session
+    private Crypto.DatabaseKey key;
+    static String version = "3.1.1"; // current version
 
     Database() {
-        this.contacts = new ArrayList<>();
+        this.contacts = new ContactRegistry();
         this.settings = new Settings();
+        this.journalSequence = 0;
+        this.key = null;
     }
 
     public void addContact(Contact contact) {
-        int idx = findContact(contact.getPublicKey());
-        if (idx >= 0) {
-            // contact exists - replace
-            this.contacts.set(idx, contact);
-        } else {
-            this.contacts.add(contact);
-        }
+        // replaces a contact with the same public key
+        this.contacts.put(contact);
     }
 
     public void deleteContact(byte[] publicKey) {
-        int idx = this.findContact(publicKey);
-        if (idx >= 0) {
-            this.contacts.remove(idx);
-        }
+        this.contacts.remove(publicKey);
+        KeyCache.remove(publicKey);
     }
 
-    public int findContact(byte[] publicKey) {
-        for (int i = 0; i < this.contacts.size(); i += 1) {
-            if (Arrays.equals(this.contacts.get(i).getPublicKey(), publicKey)) {
-                return i;
-            }
-        }
-        return -1;
+    public Contact findContact(byte[] publicKey) {
+        return this.contacts.get(publicKey);
     }
 
     public void onDestroy() {
@@ -61,17 +55,71 @@ class Database {
                 Arrays.fill(contact.getPublicKey(), (byte) 0);
             }
         }
+
+        synchronized (this) {
+            if (this.key != null) {
+                this.key.destroy();
+                this.key = null;
+            }
+        }
+
+        KeyCache.clear();
+    }
+
+    /*
+    * Get a copy of the key for the database password, the caller
+    * destroys it when done. A new key (and salt) is only derived
+    * if the password has changed. Deriving is slow, do not call
+    * it on the main thread.
+    */
+    Crypto.DatabaseKey getKey(String password) {
+        byte[] bytes = password.getBytes();
+        try {
+            synchronized (this) {
+                if (this.key != null && this.key.matches(bytes)) {
+                    return this.key.copy();
+                }
+            }
+
+            // derive without holding the lock
+            Crypto.DatabaseKey key = Crypto.DatabaseKey.create(bytes);
+            if (key == null) {
+                return null;
+            }
+
+            synchronized (this) {
+                // nobody else holds the old key, everyone got a copy
+                if (this.key != null) {
+                    this.key.destroy();
+                }
+                this.key = key;
+                return key.copy();
+            }
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
     }
 
     public static Database load(String path, String password) throws IOException, JSONException {
+        return load(path, password, null);
+    }
+
+    // load database and apply the changes recorded in the journal
+    static Database load(String path, String password, DatabaseJournal journal) throws IOException, JSONException {
         // read database file
         byte[] data = Utils.readExternalFile(path);
 
-        // encrypt database
+        // decrypt database, keep the key for later stores
+        Crypto.DatabaseKey key = null;
         if (password != null && password.length() > 0) {
-            data = Crypto.decryptDatabase(data, password.getBytes());
+            byte[] salt = Crypto.getDatabaseSalt(data);
+            key = (salt != null) ? Crypto.DatabaseKey.derive(password.getBytes(), salt) : null;
+            data = Crypto.decryptDatabase(data, key);
 
             if (data == null) {
+                if (key != null) {
+                    key.destroy();
+                }
                 throw new IOException("wrong database password.");
             }
         }
@@ -80,8 +128,13 @@ class Database {
             new String(data, Charset.forName("UTF-8"))
         );
 
+        if (journal != null) {
+            journal.open(obj, password, key);
+        }
+
         boolean upgraded = upgradeDatabase(obj.getString("version"), Database.version, obj);
         Database db = Database.fromJSON(obj);
+        db.key = key;
 
         if (upgraded) {
             log("store updated database");
@@ -92,16 +145,41 @@ class Database {
     }
 
     public static void store(String path, Database db, String password) throws IOException, JSONException {
-        JSONObject obj = Database.toJSON(db);
+        Crypto.DatabaseKey key = null;
+        synchronized (db) {
+            if (db.key != null) {
+                key = db.key.copy();
+            }
+        }
+
+        try {
+            write(path, Database.toJSON(db), password, key, 0);
+        } finally {
+            if (key != null) {
+                key.destroy();
+            }
+        }
+    }
+
+    // write database JSON, the key is used if it belongs to the password
+    static void write(String path, JSONObject obj, String password, Crypto.DatabaseKey key, int backups) throws IOException {
         byte[] data = obj.toString().getBytes();
 
         // encrypt database
         if (password != null && password.length() > 0) {
-            data = Crypto.encryptDatabase(data, password.getBytes());
+            if (key != null && key.matches(password.getBytes())) {
+                data = Crypto.encryptDatabase(data, key);
+            } else {
+                data = Crypto.encryptDatabase(data, password.getBytes());
+            }
+
+            if (data == null) {
+                throw new IOException("database encryption failed");
+            }
         }
 
         // write database file
-        Utils.writeExternalFile(path, data);
+        Utils.writeExternalFile(path, data, backups);
     }
 
     private static boolean upgradeDatabase(String from, String to, JSONObject obj) throws JSONException {
@@ -154,6 +232,12 @@ class Database {
             from = "3.1.0";
         }
 
+        // 3.1.0 => 3.1.1
+        if (from.equals("3.1.0")) {
+            obj.getJSONObject("settings").put("persistent_connections", false);
+            from = "3.1.1";
+        }
+
         obj.put("version", from);
 
         return true;
@@ -163,6 +247,7 @@ class Database {
         JSONObject obj = new JSONObject();
         obj.put("version", db.version);
         obj.put("settings", Settings.exportJSON(db.settings));
+        obj.put("journal_sequence", db.journalSequence);
 
         JSONArray contacts = new JSONArray();
         for (Contact contact : db.contacts) {
@@ -178,14 +263,17 @@ class Database {
 
         // import version
         db.version = obj.getString("version");
+        db.journalSequence = obj.optLong("journal_sequence", 0);
 
         // import contacts
         JSONArray array = obj.getJSONArray("contacts");
+        ArrayList<Contact> contacts = new ArrayList<>(array.length());
         for (int i = 0; i < array.length(); i += 1) {
-            db.contacts.add(
+            contacts.add(
                 Contact.importJSON(array.getJSONObject(i), true)
             );
         }
+        db.contacts.putAll(contacts);
 
         // import settings
         JSONObject settings = obj.getJSONObject("settings");
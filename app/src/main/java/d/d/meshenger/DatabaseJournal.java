@@ -0,0 +1,377 @@
+package d.d.meshenger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.libsodium.jni.Sodium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/*
+* Append-only log of database changes since the last full write.
+*
+* File format:
+*   header: [magic][version][encrypted][salt]
+*   record: [length][nonce + encrypted JSON] or [length][JSON]
+*
+* Each record carries a sequence number. The database file stores the
+* sequence number of the last record it includes ("journal_sequence"),
+* older records are skipped when the journal is read.
+* The journal uses the key (and salt) of the database file, so no
+* extra key derivation is needed.
+*
+* Records are numbered and encoded by putContact()/deleteContact(),
+* writeRecord() appends them to the file later on the writer thread.
+*/
+class DatabaseJournal {
+    static final String SUFFIX = ".journal";
+    private static final byte[] MAGIC = {'M', 'J', 'N', 'L'};
+    private static final int VERSION = 1;
+
+    private final File file;
+    // own copy, the database may replace its key at any time
+    private Crypto.DatabaseKey key;
+    private long sequence;
+    private int records;
+    private long size;
+
+    DatabaseJournal(String databasePath) {
+        this.file = new File(databasePath + SUFFIX);
+        this.key = null;
+        this.sequence = 0;
+        this.records = 0;
+        this.size = 0;
+    }
+
+    /*
+    * Read the journal and apply all records that are newer than the
+    * database JSON. Damaged records at the end (e.g. from a crash
+    * during a write) are cut off.
+    */
+    synchronized void open(JSONObject db, String password, Crypto.DatabaseKey key) throws IOException, JSONException {
+        this.sequence = db.optLong("journal_sequence", 0);
+
+        if (!this.file.exists()) {
+            create(key, this.sequence);
+            return;
+        }
+
+        byte[] data = Utils.readExternalFile(this.file.getPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        if (!readHeader(buffer, password, key)) {
+            log("invalid journal header => ignore journal");
+            create(key, this.sequence);
+            return;
+        }
+
+        int applied = 0;
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > (buffer.remaining() - 4)) {
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.position(buffer.position() + 4);
+            buffer.get(payload);
+
+            JSONObject record = decode(payload);
+            if (record == null) {
+                // continue after the last good record
+                buffer.position(buffer.position() - 4 - length);
+                break;
+            }
+
+            long seq = record.getLong("seq");
+            if (seq > this.sequence) {
+                apply(db, record);
+                this.sequence = seq;
+                applied += 1;
+            }
+            this.records += 1;
+        }
+
+        if (buffer.hasRemaining()) {
+            log("cut off damaged journal end");
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(buffer.position());
+            } finally {
+                raf.close();
+            }
+        }
+
+        this.size = buffer.position();
+        db.put("journal_sequence", this.sequence);
+        log("applied " + applied + " journal records");
+    }
+
+    /*
+    * Start an empty journal after the database file with the given
+    * sequence number. Used if there is none yet or the database
+    * password has changed.
+    */
+    synchronized void create(Crypto.DatabaseKey key, long sequence) throws IOException {
+        zeroKey();
+        this.key = (key != null) ? key.copy() : null;
+        this.sequence = sequence;
+        writeHeader();
+    }
+
+    synchronized byte[] putContact(Contact contact) throws IOException, JSONException {
+        JSONObject record = new JSONObject();
+        record.put("op", "put_contact");
+        record.put("contact", Contact.exportJSON(contact, true));
+        return encode(record);
+    }
+
+    synchronized byte[] deleteContact(byte[] publicKey) throws IOException, JSONException {
+        JSONObject record = new JSONObject();
+        record.put("op", "delete_contact");
+        record.put("public_key", Utils.byteArrayToHexString(publicKey));
+        return encode(record);
+    }
+
+    /*
+    * Append a record returned by putContact() or deleteContact().
+    * Records must be written in order and by the thread that also
+    * writes the database file.
+    */
+    void writeRecord(byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.file, true);
+        try {
+            fos.write(data);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    // sequence number of the last record
+    synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    synchronized int getRecordCount() {
+        return this.records;
+    }
+
+    synchronized long getSize() {
+        return this.size;
+    }
+
+    /*
+    * Remove all records after the database file was written up to the
+    * given sequence number. Records added in the meantime are kept.
+    * The journal is replaced via a temporary file.
+    */
+    synchronized void truncate(long snapshotSequence) throws IOException {
+        byte[] data = this.file.exists() ? Utils.readExternalFile(this.file.getPath()) : new byte[0];
+        byte[] header = getHeader();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        out.write(header);
+
+        if (data.length >= header.length) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.position(header.length);
+
+            // records are in sequence order
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > (buffer.remaining() - 4)) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.position(start + 4);
+                buffer.get(payload);
+
+                JSONObject record = decode(payload);
+                if (record == null) {
+                    break;
+                }
+
+                if (record.optLong("seq", 0) > snapshotSequence) {
+                    out.write(data, start, 4 + length);
+                }
+            }
+        }
+
+        Utils.writeExternalFile(this.file.getPath(), out.toByteArray(), 0);
+
+        // records that are not written yet are counted as well
+        long pending = Math.max(0, this.size - data.length);
+        this.records = (int) Math.max(0, this.sequence - snapshotSequence);
+        this.size = out.size() + pending;
+    }
+
+    // zero key
+    synchronized void close() {
+        zeroKey();
+    }
+
+    // assign the next sequence number and encode the record
+    private byte[] encode(JSONObject record) throws IOException, JSONException {
+        record.put("seq", this.sequence + 1);
+
+        byte[] payload = record.toString().getBytes();
+        if (this.key != null) {
+            byte[] encrypted = Crypto.encryptWithKey(payload, this.key.getKey());
+            Arrays.fill(payload, (byte) 0);
+            if (encrypted == null) {
+                throw new IOException("journal encryption failed");
+            }
+            payload = encrypted;
+        }
+
+        byte[] data = new byte[4 + payload.length];
+        ByteBuffer.wrap(data).putInt(payload.length).put(payload);
+
+        this.sequence += 1;
+        this.records += 1;
+        this.size += data.length;
+        return data;
+    }
+
+    private JSONObject decode(byte[] payload) {
+        byte[] data = payload;
+        if (this.key != null) {
+            data = Crypto.decryptWithKey(payload, this.key.getKey());
+            if (data == null) {
+                return null;
+            }
+        }
+
+        try {
+            return new JSONObject(new String(data, Charset.forName("UTF-8")));
+        } catch (JSONException e) {
+            return null;
+        } finally {
+            if (data != payload) {
+                Arrays.fill(data, (byte) 0);
+            }
+        }
+    }
+
+    private static void apply(JSONObject db, JSONObject record) throws JSONException {
+        JSONArray contacts = db.getJSONArray("contacts");
+        switch (record.getString("op")) {
+            case "put_contact": {
+                JSONObject contact = record.getJSONObject("contact");
+                int idx = indexOf(contacts, contact.getString("public_key"));
+                if (idx >= 0) {
+                    contacts.put(idx, contact);
+                } else {
+                    contacts.put(contact);
+                }
+                break;
+            }
+            case "delete_contact": {
+                int idx = indexOf(contacts, record.getString("public_key"));
+                if (idx >= 0) {
+                    contacts.remove(idx);
+                }
+                break;
+            }
+            default:
+                log("unknown journal record: " + record.getString("op"));
+        }
+    }
+
+    private static int indexOf(JSONArray contacts, String publicKey) throws JSONException {
+        for (int i = 0; i < contacts.length(); i += 1) {
+            if (contacts.getJSONObject(i).getString("public_key").equalsIgnoreCase(publicKey)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean readHeader(ByteBuffer buffer, String password, Crypto.DatabaseKey key) {
+        if (buffer.remaining() < (MAGIC.length + 2)) {
+            return false;
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        int version = buffer.get();
+        boolean encrypted = (buffer.get() != 0);
+
+        if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+            return false;
+        }
+
+        boolean hasPassword = (password != null && password.length() > 0);
+        if (encrypted != hasPassword) {
+            return false;
+        }
+
+        if (encrypted) {
+            byte[] salt = new byte[Sodium.crypto_pwhash_saltbytes()];
+            if (buffer.remaining() < salt.length) {
+                return false;
+            }
+            buffer.get(salt);
+
+            zeroKey();
+            if (key != null && key.hasSalt(salt)) {
+                this.key = key.copy();
+            } else {
+                // written with an older key
+                this.key = Crypto.DatabaseKey.derive(password.getBytes(), salt);
+                if (this.key == null) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] getHeader() {
+        byte[] salt = (this.key != null) ? this.key.getSalt() : new byte[0];
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2 + salt.length);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) (this.key != null ? 1 : 0));
+        header.put(salt);
+        return header.array();
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] header = getHeader();
+
+        FileOutputStream fos = new FileOutputStream(this.file, false);
+        try {
+            fos.write(header);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        this.records = 0;
+        this.size = header.length;
+    }
+
+    private void zeroKey() {
+        if (this.key != null) {
+            this.key.destroy();
+        }
+        this.key = null;
+    }
+
+    private static void log(String s) {
+        Log.d("DatabaseJournal", s);
+    }
+}
@@ -0,0 +1,356 @@
+package d.d.meshenger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Persists the database of the service.
+*
+* Adding and deleting contacts appends a small record to the journal.
+* The complete database is only written by store() or in the background
+* when the journal has grown too large (compaction). All file writes
+* happen on a single thread. Writes requested while another write is
+* still waiting are merged into it, only the newest state is written.
+*
+* Database changes are captured on the calling thread, so that the
+* writer thread never reads the database while it is being modified.
+*/
+class DatabaseStore {
+    static final int COMPACT_RECORDS = 32;
+    static final long COMPACT_SIZE = 64 * 1024;
+    // previous database files to keep
+    static final int BACKUP_GENERATIONS = 2;
+
+    // a write that has not been started yet
+    private static class PendingWrite {
+        Database db;
+        JSONObject obj;
+        String password;
+        DatabaseJournal journal;
+        long sequence;
+        Future<?> future;
+    }
+
+    private final String path;
+    private final ExecutorService writer;
+    private String password;
+    // password of the database file on disk, only used by the writer thread
+    private String writtenPassword;
+    private DatabaseJournal journal;
+    private PendingWrite pending;
+    private boolean compacting;
+    // submitted writes that have not finished yet
+    private int writes;
+    // called on the writer thread when all writes have finished
+    private Runnable idleListener;
+
+    DatabaseStore(String path, String password) {
+        this.path = path;
+        this.password = (password != null) ? password : "";
+        this.writtenPassword = this.password;
+        this.writer = Executors.newSingleThreadExecutor();
+        this.journal = null;
+        this.pending = null;
+        this.compacting = false;
+        this.writes = 0;
+        this.idleListener = null;
+    }
+
+    // also restores the newest backup if the database file has gone missing
+    boolean exists() {
+        File file = new File(this.path);
+        if (!file.exists()) {
+            for (int i = 1; i <= BACKUP_GENERATIONS; i += 1) {
+                File backup = new File(this.path + "." + i);
+                if (backup.exists() && backup.renameTo(file)) {
+                    log("restored database backup " + i);
+                    break;
+                }
+            }
+        }
+        return file.exists();
+    }
+
+    synchronized Database load() throws IOException, JSONException {
+        long start = System.nanoTime();
+        DatabaseJournal journal = new DatabaseJournal(this.path);
+        Database db = Database.load(this.path, this.password, journal);
+        this.journal = journal;
+        Metrics.histogram("database load").recordSince(start);
+        return db;
+    }
+
+    synchronized void setPassword(String password) {
+        this.password = (password != null) ? password : "";
+
+        // records are encrypted with the old password, start a new journal with the next store()
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+    }
+
+    synchronized void setIdleListener(Runnable listener) {
+        this.idleListener = listener;
+    }
+
+    synchronized boolean hasPendingWrites() {
+        return this.writes > 0;
+    }
+
+    synchronized void addContact(Database db, Contact contact) {
+        db.addContact(contact);
+        try {
+            if (this.journal != null) {
+                submitRecord(this.journal, this.journal.putContact(contact));
+                compactIfNeeded(db);
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        storeQuietly(db);
+    }
+
+    synchronized void deleteContact(Database db, byte[] publicKey) {
+        db.deleteContact(publicKey);
+        try {
+            if (this.journal != null) {
+                submitRecord(this.journal, this.journal.deleteContact(publicKey));
+                compactIfNeeded(db);
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        storeQuietly(db);
+    }
+
+    /*
+    * Write the complete database in the background.
+    * Does not wait for the write to finish.
+    */
+    synchronized void storeAsync(Database db) {
+        storeQuietly(db);
+    }
+
+    /*
+    * Write the complete database and clear the journal.
+    * Waits until the file has been written.
+    */
+    void store(Database db) throws IOException, JSONException {
+        Future<?> future;
+        synchronized (this) {
+            future = submitStore(db);
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+    * Run a task on the writer thread after all writes submitted
+    * so far, e.g. slow key derivations or other file writes.
+    */
+    void execute(Runnable task) {
+        this.writer.execute(task);
+    }
+
+    // wait for pending writes and zero keys
+    void close() {
+        this.writer.shutdown();
+        try {
+            this.writer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+
+        synchronized (this) {
+            if (this.journal != null) {
+                this.journal.close();
+                this.journal = null;
+            }
+        }
+    }
+
+    // called with the lock held, so the counter is increased before the task can finish
+    private void submitRecord(DatabaseJournal journal, byte[] record) {
+        this.writer.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                journal.writeRecord(record);
+                Metrics.histogram("database journal write").recordSince(start);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    // the next change writes the complete database
+                    if (this.journal == journal) {
+                        this.journal.close();
+                        this.journal = null;
+                    }
+                }
+            } finally {
+                writeFinished();
+            }
+        });
+        this.writes += 1;
+    }
+
+    private void writeFinished() {
+        Runnable listener = null;
+        synchronized (this) {
+            this.writes -= 1;
+            if (this.writes == 0) {
+                listener = this.idleListener;
+            }
+        }
+
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void storeQuietly(Database db) {
+        try {
+            submitStore(db);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void compactIfNeeded(Database db) throws JSONException {
+        if (this.compacting) {
+            return;
+        }
+
+        if (this.journal.getRecordCount() < COMPACT_RECORDS && this.journal.getSize() < COMPACT_SIZE) {
+            return;
+        }
+
+        log("compact journal");
+        this.compacting = true;
+        submitStore(db);
+    }
+
+    // capture the database on the calling thread, encrypt and write it in the background
+    private Future<?> submitStore(Database db) throws JSONException {
+        DatabaseJournal journal = this.journal;
+        long sequence = (journal != null) ? journal.getSequence() : db.journalSequence;
+
+        db.journalSequence = sequence;
+        JSONObject obj = Database.toJSON(db);
+
+        // replace the state of a write that has not started yet
+        PendingWrite write = this.pending;
+        if (write == null) {
+            write = new PendingWrite();
+        }
+
+        write.db = db;
+        write.obj = obj;
+        write.password = this.password;
+        write.journal = journal;
+        write.sequence = sequence;
+
+        if (write.future == null) {
+            PendingWrite w = write;
+            w.future = this.writer.submit(() -> {
+                synchronized (this) {
+                    if (this.pending == w) {
+                        this.pending = null;
+                    }
+                }
+                try {
+                    write(w);
+                } finally {
+                    writeFinished();
+                }
+                return null;
+            });
+            this.pending = w;
+            this.writes += 1;
+        } else {
+            log("merge database writes");
+        }
+
+        return write.future;
+    }
+
+    // runs on the writer thread
+    private void write(PendingWrite w) throws IOException {
+        Database db;
+        JSONObject obj;
+        String password;
+        DatabaseJournal journal;
+        long sequence;
+
+        synchronized (this) {
+            db = w.db;
+            obj = w.obj;
+            password = w.password;
+            journal = w.journal;
+            sequence = w.sequence;
+        }
+
+        // derives a key only if the password has changed
+        boolean encrypt = (password.length() > 0);
+        Crypto.DatabaseKey key = encrypt ? db.getKey(password) : null;
+        try {
+            if (encrypt && key == null) {
+                throw new IOException("key derivation failed");
+            }
+
+            // backups with the old password must not stay on disk
+            boolean passwordChanged = !password.equals(this.writtenPassword);
+
+            long start = System.nanoTime();
+            Database.write(this.path, obj, password, key, passwordChanged ? 0 : BACKUP_GENERATIONS);
+            Metrics.histogram("database store").recordSince(start);
+
+            if (passwordChanged) {
+                Utils.deleteBackupFiles(this.path, BACKUP_GENERATIONS);
+                this.writtenPassword = password;
+            }
+
+            synchronized (this) {
+                if (this.journal == null && password.equals(this.password)) {
+                    // first store or new password
+                    DatabaseJournal created = new DatabaseJournal(this.path);
+                    created.create(key, sequence);
+                    this.journal = created;
+                } else if (this.journal == journal && journal != null) {
+                    this.journal.truncate(sequence);
+                }
+            }
+        } finally {
+            if (key != null) {
+                key.destroy();
+            }
+            synchronized (this) {
+                this.compacting = false;
+            }
+        }
+    }
+
+    private static void log(String s) {
+        Log.d("DatabaseStore", s);
+    }
+}
@@ -0,0 +1,283 @@
+package d.d.meshenger;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/*
+* Connect to the first reachable address of a list (Happy Eyeballs, RFC 8305).
+* Connection attempts are started one after another with a short delay,
+* without waiting for the previous attempt to time out. The first
+* established connection wins, all other attempts are closed.
+*/
+class Dialer {
+    // delay before the next connection attempt is started
+    static final int ATTEMPT_DELAY_MS = 250;
+    // timeout of a single connection attempt
+    static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int MAX_HISTORY = 256;
+
+    // time of the last successful/failed connection per address
+    private static final Map<InetSocketAddress, Long> lastSuccess = new ConcurrentHashMap<>();
+    private static final Map<InetSocketAddress, Long> lastFailure = new ConcurrentHashMap<>();
+
+    private static class Attempt {
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        final long started;
+        // for the connect latency
+        final long startedNanos;
+
+        Attempt(InetSocketAddress address, SocketChannel channel, long started) {
+            this.address = address;
+            this.channel = channel;
+            this.started = started;
+            this.startedNanos = System.nanoTime();
+        }
+    }
+
+    /*
+    * Return a connected blocking socket or null. The preferred
+    * address (may be null) is tried first, the other addresses
+    * in order of recent success.
+    */
+    static Socket connect(InetSocketAddress preferred, List<InetSocketAddress> addresses) {
+        List<InetSocketAddress> ordered = rank(preferred, addresses);
+        if (ordered.isEmpty()) {
+            return null;
+        }
+
+        Selector selector;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        List<Attempt> pending = new ArrayList<>();
+        SocketChannel winner = null;
+        int next = 0;
+        long nextStart = 0;
+
+        try {
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+
+                // start next attempt on schedule or when nothing is pending anymore
+                if (next < ordered.size() && (now >= nextStart || pending.isEmpty())) {
+                    InetSocketAddress address = ordered.get(next);
+                    next += 1;
+                    nextStart = now + ATTEMPT_DELAY_MS;
+
+                    log("try address: '" + address.getHostString() + "', port: " + address.getPort());
+                    Attempt attempt = start(selector, address, now);
+                    if (attempt == null) {
+                        continue;
+                    }
+
+                    if (attempt.channel.isConnected()) {
+                        winner = attempt.channel;
+                        recordSuccess(attempt);
+                        pending.add(attempt);
+                        break;
+                    }
+                    pending.add(attempt);
+                }
+
+                // drop attempts that took too long
+                for (Attempt attempt : new ArrayList<>(pending)) {
+                    if ((now - attempt.started) >= CONNECT_TIMEOUT_MS) {
+                        fail(pending, attempt);
+                    }
+                }
+
+                if (pending.isEmpty() && next >= ordered.size()) {
+                    // all addresses failed
+                    break;
+                }
+
+                long wait = (next < ordered.size()) ? (nextStart - now) : CONNECT_TIMEOUT_MS;
+                for (Attempt attempt : pending) {
+                    wait = Math.min(wait, attempt.started + CONNECT_TIMEOUT_MS - now);
+                }
+
+                selector.select(Math.max(1, wait));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            winner = attempt.channel;
+                            recordSuccess(attempt);
+                            break;
+                        }
+                    } catch (IOException e) {
+                        // device is offline or does not listen on the given port
+                        fail(pending, attempt);
+                        // start next attempt right away
+                        nextStart = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            // cancel all other attempts
+            for (Attempt attempt : pending) {
+                if (attempt.channel != winner) {
+                    closeQuietly(attempt.channel);
+                }
+            }
+
+            // deregister the winner, it can then be switched to blocking mode
+            selector.close();
+
+            if (winner == null) {
+                Metrics.counter("connect unreachable").increment();
+            } else {
+                winner.configureBlocking(true);
+                return winner.socket();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (Attempt attempt : pending) {
+                closeQuietly(attempt.channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException ee) {
+                // ignore
+            }
+        }
+
+        return null;
+    }
+
+    private static Attempt start(Selector selector, InetSocketAddress address, long now) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Attempt attempt = new Attempt(address, channel, now);
+            if (!channel.connect(address)) {
+                channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            }
+            return attempt;
+        } catch (Exception e) {
+            // e.g. unresolved address or unreachable network
+            recordFailure(address);
+            Metrics.counter("connect failed").increment();
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            return null;
+        }
+    }
+
+    private static void fail(List<Attempt> pending, Attempt attempt) {
+        pending.remove(attempt);
+        recordFailure(attempt.address);
+        Metrics.counter("connect failed").increment();
+        closeQuietly(attempt.channel);
+    }
+
+    private static void recordSuccess(Attempt attempt) {
+        recordSuccess(attempt.address);
+        Metrics.histogram("connect " + attempt.address.getHostString()).recordSince(attempt.startedNanos);
+    }
+
+    /*
+    * Remove duplicates and sort addresses: the preferred address first,
+    * then recently successful, recently failed last. Otherwise keep the
+    * given order, but alternate between IPv6 and IPv4 addresses.
+    */
+    static List<InetSocketAddress> rank(InetSocketAddress preferred, List<InetSocketAddress> addresses) {
+        List<InetSocketAddress> ipv6 = new ArrayList<>();
+        List<InetSocketAddress> other = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            if (address == null || address.equals(preferred) || ipv6.contains(address) || other.contains(address)) {
+                continue;
+            }
+
+            if (address.getAddress() instanceof Inet6Address) {
+                ipv6.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        List<InetSocketAddress> interleaved = new ArrayList<>();
+        for (int i = 0; i < Math.max(ipv6.size(), other.size()); i += 1) {
+            if (i < ipv6.size()) {
+                interleaved.add(ipv6.get(i));
+            }
+            if (i < other.size()) {
+                interleaved.add(other.get(i));
+            }
+        }
+
+        // the sort is stable, addresses without history keep their position
+        Map<InetSocketAddress, Long> scores = new HashMap<>();
+        for (InetSocketAddress address : interleaved) {
+            Long success = lastSuccess.get(address);
+            Long failure = lastFailure.get(address);
+            long s = (success != null) ? success : 0;
+            long f = (failure != null) ? failure : 0;
+            scores.put(address, (s > f) ? s : ((f > 0) ? -f : 0));
+        }
+
+        // success > unknown (0) > failure, latest success and oldest failure first
+        Collections.sort(interleaved, new Comparator<InetSocketAddress>() {
+            @Override
+            public int compare(InetSocketAddress a, InetSocketAddress b) {
+                return Long.compare(scores.get(b), scores.get(a));
+            }
+        });
+
+        if (preferred != null) {
+            interleaved.add(0, preferred);
+        }
+
+        return interleaved;
+    }
+
+    // also called for addresses contacts have connected from
+    static void recordSuccess(InetSocketAddress address) {
+        if (lastSuccess.size() > MAX_HISTORY) {
+            lastSuccess.clear();
+        }
+        lastSuccess.put(address, System.currentTimeMillis());
+        lastFailure.remove(address);
+    }
+
+    static void recordFailure(InetSocketAddress address) {
+        if (lastFailure.size() > MAX_HISTORY) {
+            lastFailure.clear();
+        }
+        lastFailure.put(address, System.currentTimeMillis());
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void log(String s) {
+        Log.d(Dialer.class.getSimpleName(), s);
+    }
+}
@@ -9,42 +9,198 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 
 class EventListAdapter extends ArrayAdapter<CallEvent> {
     private LayoutInflater inflater;
-    private List<CallEvent> events;
-    private List<Contact> contacts;
+    private volatile Rows rows;
     private Context context;
+    private final SimpleDateFormat todayFormat = new SimpleDateFormat("'Today at' hh:mm:ss");
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd 'at' hh:mm:ss");
+
+    // consecutive events of the same contact and type
+    static final class Row {
+        // latest event
+        final CallEvent event;
+        final Contact contact;
+        final int count;
+
+        Row(CallEvent event, Contact contact) {
+            this(event, contact, 1);
+        }
+
+        Row(CallEvent event, Contact contact, int count) {
+            this.event = event;
+            this.contact = contact;
+            this.count = count;
+        }
+
+        boolean groups(CallEvent event) {
+            return this.event.type == event.type && Arrays.equals(this.event.pubKey, event.pubKey);
+        }
+    }
+
+    /*
+    * Rows prepared from event and contact snapshots,
+    * can be created off the main thread.
+    */
+    static final class Rows {
+        final List<CallEvent> events;
+        final List<Contact> contacts;
+        final List<Row> rows;
+        // rows this was derived from by append(), null otherwise
+        final List<Row> previousRows;
+        // rows were added or removed, otherwise only the first row has changed
+        final boolean structural;
+        private final HashMap<ContactRegistry.Key, Contact> index;
+
+        Rows(List<CallEvent> events, List<Contact> contacts) {
+            this.events = events;
+            this.contacts = contacts;
+            this.previousRows = null;
+            this.structural = true;
+
+            // index contacts once
+            this.index = new HashMap<>(contacts.size() * 2);
+            for (Contact contact : contacts) {
+                this.index.put(new ContactRegistry.Key(contact.getPublicKey()), contact);
+            }
+
+            // latest event first
+            List<Row> rows = new ArrayList<>();
+            for (int i = events.size() - 1; i >= 0; i -= 1) {
+                CallEvent event = events.get(i);
+                int last = rows.size() - 1;
+                if (last >= 0 && rows.get(last).groups(event)) {
+                    Row row = rows.get(last);
+                    rows.set(last, new Row(row.event, row.contact, row.count + 1));
+                    continue;
+                }
+                rows.add(new Row(event, this.index.get(new ContactRegistry.Key(event.pubKey))));
+            }
+            this.rows = Collections.unmodifiableList(rows);
+        }
+
+        private Rows(Rows previous, List<CallEvent> events, List<Row> rows, boolean structural) {
+            this.events = events;
+            this.contacts = previous.contacts;
+            this.rows = Collections.unmodifiableList(rows);
+            this.previousRows = previous.rows;
+            this.structural = structural;
+            this.index = previous.index;
+        }
+
+        /*
+        * Rows for events that only differ from the shown events by events
+        * appended at the end (and the same number dropped at the start).
+        * Returns null if the rows need to be built from scratch.
+        */
+        static Rows append(Rows previous, List<CallEvent> events, List<Contact> contacts) {
+            List<CallEvent> shown = previous.events;
+            if (previous.contacts != contacts || shown.isEmpty() || events.isEmpty()) {
+                return null;
+            }
+
+            // the event log keeps the instances of listed events
+            CallEvent newest = shown.get(shown.size() - 1);
+            int kept = events.lastIndexOf(newest) + 1;
+            int dropped = shown.size() - kept;
+            if (kept == 0 || dropped < 0 || events.get(0) != shown.get(dropped)) {
+                return null;
+            }
+
+            List<Row> rows = new ArrayList<>(previous.rows);
+            boolean structural = false;
+
+            // dropped events belong to the last rows
+            while (dropped > 0) {
+                int last = rows.size() - 1;
+                Row row = rows.get(last);
+                int n = Math.min(dropped, row.count);
+                if (n == row.count) {
+                    rows.remove(last);
+                    structural = true;
+                } else {
+                    rows.set(last, new Row(row.event, row.contact, row.count - n));
+                    if (last != 0) {
+                        structural = true;
+                    }
+                }
+                dropped -= n;
+            }
+
+            for (int i = kept; i < events.size(); i += 1) {
+                CallEvent event = events.get(i);
+                if (!rows.isEmpty() && rows.get(0).groups(event)) {
+                    Row row = rows.get(0);
+                    rows.set(0, new Row(event, row.contact, row.count + 1));
+                } else {
+                    rows.add(0, new Row(event, previous.index.get(new ContactRegistry.Key(event.pubKey))));
+                    structural = true;
+                }
+            }
+
+            return new Rows(previous, events, rows, structural);
+        }
+    }
 
     public EventListAdapter(@NonNull Context context, int resource, List<CallEvent> events, List<Contact> contacts) {
-        super(context, resource, events);
+        super(context, resource);
 
-        this.events = events;
-        this.contacts = contacts;
+        this.rows = new Rows(events, contacts);
         this.context = context;
 
         inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
-    public void update(List<CallEvent> events, List<Contact> contacts) {
-        this.events = events;
-        this.contacts = contacts;
+    Rows getRows() {
+        return this.rows;
+    }
+
+    /*
+    * Show the new rows. If they were appended to the shown rows
+    * and only the first row has changed, only that row is bound again.
+    */
+    void apply(ListView listView, Rows rows) {
+        boolean partial = (rows.previousRows == this.rows.rows && !rows.structural);
+        this.rows = rows;
+
+        if (partial) {
+            ListDiff.rebindRow(listView, this, 0);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    // lists are immutable snapshots, compare by identity
+    boolean isShowing(List<CallEvent> events, List<Contact> contacts) {
+        Rows rows = this.rows;
+        return rows.events == events && rows.contacts == contacts;
     }
 
     @Override
     public int getCount() {
-        return events.size();
+        return this.rows.rows.size();
     }
 
+    // latest event of the row
     @Override
     public CallEvent getItem(int position) {
-        return events.get(position);
+        return this.rows.rows.get(position).event;
+    }
+
+    // contact of the row, null for unknown callers
+    Contact getContact(int position) {
+        return this.rows.rows.get(position).contact;
     }
 
     @Override
@@ -55,36 +211,29 @@ class EventListAdapter extends ArrayAdapter<CallEvent> {
     @NonNull
     @Override
     public View getView(int position, @Nullable View view, @NonNull ViewGroup parent) {
-        // show list in reverse, latest element first
-        CallEvent event = this.events.get(this.events.size() - position - 1);
+        Row row = this.rows.rows.get(position);
+        CallEvent event = row.event;
 
         if (view == null) {
             view = inflater.inflate(R.layout.item_event, null);
         }
 
-        // find name
-        String name = "";
-        for (Contact contact : this.contacts) {
-            if (Arrays.equals(contact.getPublicKey(), event.pubKey)) {
-                name = contact.getName();
-                break;
-            }
-        }
+        String name = (row.contact != null) ? row.contact.getName() : "";
 
         TextView name_tv = view.findViewById(R.id.call_name);
         if (name.isEmpty()) {
-            name_tv.setText(this.context.getResources().getString(R.string.unknown_caller));
-        } else {
-            name_tv.setText(name);
+            name = this.context.getResources().getString(R.string.unknown_caller);
+        }
+        if (row.count > 1) {
+            name += " (" + row.count + ")";
         }
+        name_tv.setText(name);
 
         TextView date_tv = view.findViewById(R.id.call_date);
         if (DateUtils.isToday(event.date.getTime())) {
-            SimpleDateFormat ft = new SimpleDateFormat("'Today at' hh:mm:ss");
-            date_tv.setText(ft.format(event.date));
+            date_tv.setText(this.todayFormat.format(event.date));
         } else {
-            SimpleDateFormat ft = new SimpleDateFormat("yyyy.MM.dd 'at' hh:mm:ss");
-            date_tv.setText(ft.format(event.date));
+            date_tv.setText(this.dateFormat.format(event.date));
         }
 
         ImageView type_iv = view.findViewById(R.id.call_type);
@@ -22,6 +22,8 @@ import android.widget.Toast;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.os.Looper.getMainLooper;
 
@@ -31,6 +33,8 @@ public class EventListFragment extends Fragment implements AdapterView.OnItemCli
     private ListView eventListView;
     private EventListAdapter eventListAdapter;
     private FloatingActionButton fabDelete;
+    // reads the event log
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
 
     @Nullable
     @Override
@@ -48,70 +52,98 @@ public class EventListFragment extends Fragment implements AdapterView.OnItemCli
         eventListAdapter = new EventListAdapter(mainActivity, R.layout.item_event, Collections.emptyList(), Collections.emptyList());
         eventListView.setAdapter(eventListAdapter);
         eventListView.setOnItemClickListener(this);
+        eventListView.setOnItemLongClickListener(this::onItemLongClick);
 
         refreshEventList();
 
         return view;
     }
 
+    // apply a change sent by the service
+    void onEventsChanged(Intent intent) {
+        String change = intent.getStringExtra(MainService.EXTRA_CHANGE);
+        refreshEventList(MainService.CHANGE_EVENT_ADDED.equals(change));
+    }
+
     void refreshEventList() {
+        refreshEventList(false);
+    }
+
+    // appended: events were only added, try to update the shown rows
+    private void refreshEventList(boolean appended) {
         log("refreshEventList");
 
-        if (this.mainActivity == null || this.mainActivity.binder == null) {
+        if (this.mainActivity == null || this.mainActivity.binder == null || this.eventListAdapter == null || this.worker.isShutdown()) {
             log("refreshEventList early return");
             return;
         }
 
-        List<CallEvent> events = EventListFragment.this.mainActivity.binder.getEventsCopy();
-        List<Contact> contacts = EventListFragment.this.mainActivity.binder.getContactsCopy();
-
-        new Handler(getMainLooper()).post(() -> {
-            log("refreshEventList update: " + events.size());
-            eventListAdapter.update(events, contacts);
-            eventListAdapter.notifyDataSetChanged();
-            eventListView.setAdapter(eventListAdapter);
-
-            eventListView.setOnItemLongClickListener((AdapterView<?> adapterView, View view, int i, long l) -> {
-                CallEvent event = events.get(i);
-                PopupMenu menu = new PopupMenu(EventListFragment.this.mainActivity, view);
-                Resources res = getResources();
-                String add = res.getString(R.string.add);
-                String block = res.getString(R.string.block);
-                String unblock = res.getString(R.string.unblock);
-                Contact contact = EventListFragment.this.mainActivity.binder.getContactByPublicKey(event.pubKey);
-
-                // allow to add unknown caller
-                if (contact == null) {
-                    menu.getMenu().add(add);
-                }
-
-                // we can only block/unblock contacts
-                // (or we need to need maintain a separate bocklist)
-                if (contact != null) {
-                    if (contact.getBlocked()) {
-                        menu.getMenu().add(unblock);
-                    } else {
-                        menu.getMenu().add(block);
-                    }
-                }
-
-                menu.setOnMenuItemClickListener((MenuItem menuItem) -> {
-                    String title = menuItem.getTitle().toString();
-                    if (title.equals(add)) {
-                        showAddDialog(event);
-                    } else if (title.equals(block)) {
-                        setBlocked(event, true);
-                    } else if (title.equals(unblock)) {
-                        setBlocked(event, false);
-                    }
-                    return false;
-                });
-                menu.show();
-                return true;
+        MainService.MainBinder binder = this.mainActivity.binder;
+        EventListAdapter adapter = this.eventListAdapter;
+
+        // the event log is read in the background
+        this.worker.execute(() -> {
+            List<CallEvent> events = binder.getEventsCopy();
+            List<Contact> contacts = binder.getContactsCopy();
+
+            // both lists are immutable snapshots, the same list means no change
+            if (adapter.isShowing(events, contacts)) {
+                return;
+            }
+
+            // join events and contacts here, not on the main thread
+            EventListAdapter.Rows rows = appended ? EventListAdapter.Rows.append(adapter.getRows(), events, contacts) : null;
+            if (rows == null) {
+                rows = new EventListAdapter.Rows(events, contacts);
+            }
+
+            EventListAdapter.Rows update = rows;
+            new Handler(getMainLooper()).post(() -> {
+                log("refreshEventList update: " + events.size());
+                adapter.apply(this.eventListView, update);
             });
         });
     }
 
+    private boolean onItemLongClick(AdapterView<?> adapterView, View view, int i, long l) {
+        CallEvent event = this.eventListAdapter.getItem(i);
+        PopupMenu menu = new PopupMenu(EventListFragment.this.mainActivity, view);
+        Resources res = getResources();
+        String add = res.getString(R.string.add);
+        String block = res.getString(R.string.block);
+        String unblock = res.getString(R.string.unblock);
+        Contact contact = this.eventListAdapter.getContact(i);
+
+        // allow to add unknown caller
+        if (contact == null) {
+            menu.getMenu().add(add);
+        }
+
+        // we can only block/unblock contacts
+        // (or we need to need maintain a separate bocklist)
+        if (contact != null) {
+            if (contact.getBlocked()) {
+                menu.getMenu().add(unblock);
+            } else {
+                menu.getMenu().add(block);
+            }
+        }
+
+        menu.setOnMenuItemClickListener((MenuItem menuItem) -> {
+            String title = menuItem.getTitle().toString();
+            if (title.equals(add)) {
+                showAddDialog(event);
+            } else if (title.equals(block)) {
+                setBlocked(event, true);
+            } else if (title.equals(unblock)) {
+                setBlocked(event, false);
+            }
+            return false;
+        });
+        menu.show();
+        return true;
+    }
+
     private void setBlocked(CallEvent event, boolean blocked) {
         Contact contact = EventListFragment.this.mainActivity.binder.getContactByPublicKey(event.pubKey);
         if (contact != null) {
@@ -165,6 +197,12 @@ public class EventListFragment extends Fragment implements AdapterView.OnItemCli
         dialog.show();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        this.worker.shutdownNow();
+    }
+
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
         log("onItemClick");
@@ -0,0 +1,183 @@
+package d.d.meshenger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/*
+* Split a byte stream into length prefixed frames.
+*
+* Received bytes are appended at the tail of a reusable buffer and frames are
+* consumed from the head. Bytes of pipelined frames stay in the buffer for the
+* next call. The buffer grows for large frames (up to MAX_FRAME_SIZE) and
+* remaining bytes are only moved to the front when the tail hits the end.
+*
+* A returned frame is a view into the internal buffer and only valid until
+* the next read.
+*/
+class FrameDecoder {
+    static final int HEADER_SIZE = 4;
+    static final int INITIAL_CAPACITY = 16 * 1024;
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private final boolean direct;
+    private ByteBuffer buffer;
+    // reused view that is handed out for each frame
+    private ByteBuffer frame;
+    private int head;
+    private int tail;
+    private boolean invalid;
+
+    FrameDecoder(boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(INITIAL_CAPACITY);
+        this.frame = this.buffer.duplicate();
+        this.head = 0;
+        this.tail = 0;
+        this.invalid = false;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // frame size header was out of range, the stream cannot be recovered
+    boolean isInvalid() {
+        return this.invalid;
+    }
+
+    // number of buffered bytes not consumed yet
+    int available() {
+        return this.tail - this.head;
+    }
+
+    // read from a stream, only for heap buffers
+    int readFrom(InputStream is) throws IOException {
+        if (this.direct) {
+            throw new IllegalStateException("stream input requires a heap buffer");
+        }
+
+        if (!makeSpace()) {
+            return -1;
+        }
+
+        int read = is.read(this.buffer.array(), this.buffer.arrayOffset() + this.tail, this.buffer.capacity() - this.tail);
+        if (read > 0) {
+            this.tail += read;
+        }
+        return read;
+    }
+
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!makeSpace()) {
+            return -1;
+        }
+
+        this.buffer.limit(this.buffer.capacity());
+        this.buffer.position(this.tail);
+        int read = channel.read(this.buffer);
+        if (read > 0) {
+            this.tail += read;
+        }
+        return read;
+    }
+
+    /*
+    * Return the next complete frame (without header) or null
+    * if more data needs to be read first.
+    */
+    ByteBuffer nextFrame() {
+        if (this.invalid || available() < HEADER_SIZE) {
+            return null;
+        }
+
+        int len = this.buffer.getInt(this.head);
+        if (len < 0 || len > MAX_FRAME_SIZE) {
+            this.invalid = true;
+            return null;
+        }
+
+        int size = HEADER_SIZE + len;
+        if (available() < size) {
+            // prepare the space for the rest of the frame
+            if (size > this.buffer.capacity()) {
+                resize(size);
+            } else if (this.head + size > this.buffer.capacity()) {
+                compact();
+            }
+            return null;
+        }
+
+        this.frame.clear();
+        this.frame.position(this.head + HEADER_SIZE);
+        this.frame.limit(this.head + size);
+
+        this.head += size;
+        if (this.head == this.tail) {
+            // nothing left, start at the front again without moving data
+            this.head = 0;
+            this.tail = 0;
+        }
+
+        return this.frame;
+    }
+
+    // free space at the tail, return false if the buffer cannot take any more data
+    private boolean makeSpace() {
+        if (this.tail < this.buffer.capacity()) {
+            return true;
+        }
+
+        if (this.head > 0) {
+            compact();
+            return true;
+        }
+
+        if (this.buffer.capacity() < (HEADER_SIZE + MAX_FRAME_SIZE)) {
+            resize(this.buffer.capacity() + 1);
+            return true;
+        }
+
+        this.invalid = true;
+        return false;
+    }
+
+    // move pending bytes to the front of the buffer
+    private void compact() {
+        int pending = available();
+        if (this.head > 0 && pending > 0) {
+            // also safe for overlapping ranges of direct buffers
+            this.buffer.limit(this.tail);
+            this.buffer.position(this.head);
+            this.buffer.compact();
+        }
+        this.head = 0;
+        this.tail = pending;
+    }
+
+    private void resize(int required) {
+        int capacity = this.buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, HEADER_SIZE + MAX_FRAME_SIZE);
+
+        log("resize buffer to " + capacity + " bytes");
+
+        ByteBuffer src = this.buffer;
+        src.limit(this.tail);
+        src.position(this.head);
+
+        this.buffer = allocate(capacity);
+        this.buffer.put(src);
+        this.frame = this.buffer.duplicate();
+        this.tail = available();
+        this.head = 0;
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
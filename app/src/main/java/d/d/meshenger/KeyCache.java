@@ -0,0 +1,150 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.Sodium;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+* Cache the Curve25519 (box) keys converted from Ed25519 (sign) keys.
+* The keys of contacts are kept in a small LRU map, the keys of the
+* local identity are kept separately. Key material is zeroed on eviction
+* and on clear().
+*/
+class KeyCache {
+    static final int MAX_ENTRIES = 256;
+
+    // key is a copy of the sign public key
+    private static final LinkedHashMap<ByteBuffer, byte[]> boxPublicKeys =
+        new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                if (size() > MAX_ENTRIES) {
+                    // the map key is still needed for removal
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    // local identity
+    private static byte[] ownSignPublicKey = null;
+    private static byte[] ownSignSecretKey = null;
+    private static byte[] ownBoxPublicKey = null;
+    private static byte[] ownBoxSecretKey = null;
+
+    /*
+    * Write the box public key of a sign public key into out.
+    */
+    static boolean getBoxPublicKey(byte[] pk_sign, byte[] out) {
+        if (pk_sign == null || pk_sign.length != Sodium.crypto_sign_publickeybytes()) {
+            return false;
+        }
+
+        if (out == null || out.length != Sodium.crypto_box_publickeybytes()) {
+            return false;
+        }
+
+        synchronized (KeyCache.class) {
+            byte[] pk_box = boxPublicKeys.get(ByteBuffer.wrap(pk_sign));
+            if (pk_box != null) {
+                System.arraycopy(pk_box, 0, out, 0, pk_box.length);
+                return true;
+            }
+        }
+
+        if (Sodium.crypto_sign_ed25519_pk_to_curve25519(out, pk_sign) != 0) {
+            return false;
+        }
+
+        synchronized (KeyCache.class) {
+            boxPublicKeys.put(ByteBuffer.wrap(pk_sign.clone()), out.clone());
+        }
+
+        return true;
+    }
+
+    /*
+    * Write the box key pair of the local identity into pk_out and sk_out.
+    */
+    static synchronized boolean getOwnBoxKeyPair(byte[] pk_sign, byte[] sk_sign, byte[] pk_out, byte[] sk_out) {
+        if (pk_sign == null || pk_sign.length != Sodium.crypto_sign_publickeybytes()) {
+            return false;
+        }
+
+        if (sk_sign == null || sk_sign.length != Sodium.crypto_sign_secretkeybytes()) {
+            return false;
+        }
+
+        if (pk_out == null || pk_out.length != Sodium.crypto_box_publickeybytes()
+                || sk_out == null || sk_out.length != Sodium.crypto_box_secretkeybytes()) {
+            return false;
+        }
+
+        if (ownBoxPublicKey == null
+                || !Arrays.equals(ownSignPublicKey, pk_sign)
+                || !Arrays.equals(ownSignSecretKey, sk_sign)) {
+            clearOwnKeys();
+
+            byte[] pk_box = new byte[Sodium.crypto_box_publickeybytes()];
+            byte[] sk_box = new byte[Sodium.crypto_box_secretkeybytes()];
+            int rc1 = Sodium.crypto_sign_ed25519_pk_to_curve25519(pk_box, pk_sign);
+            int rc2 = Sodium.crypto_sign_ed25519_sk_to_curve25519(sk_box, sk_sign);
+
+            if (rc1 != 0 || rc2 != 0) {
+                Arrays.fill(pk_box, (byte) 0);
+                Arrays.fill(sk_box, (byte) 0);
+                return false;
+            }
+
+            ownSignPublicKey = pk_sign.clone();
+            ownSignSecretKey = sk_sign.clone();
+            ownBoxPublicKey = pk_box;
+            ownBoxSecretKey = sk_box;
+        }
+
+        System.arraycopy(ownBoxPublicKey, 0, pk_out, 0, ownBoxPublicKey.length);
+        System.arraycopy(ownBoxSecretKey, 0, sk_out, 0, ownBoxSecretKey.length);
+        return true;
+    }
+
+    // forget a single contact
+    static synchronized void remove(byte[] pk_sign) {
+        byte[] pk_box = boxPublicKeys.remove(ByteBuffer.wrap(pk_sign));
+        if (pk_box != null) {
+            Arrays.fill(pk_box, (byte) 0);
+        }
+    }
+
+    // zero and forget all keys
+    static synchronized void clear() {
+        List<Map.Entry<ByteBuffer, byte[]>> entries = new ArrayList<>(boxPublicKeys.entrySet());
+        boxPublicKeys.clear();
+
+        for (Map.Entry<ByteBuffer, byte[]> entry : entries) {
+            Arrays.fill(entry.getKey().array(), (byte) 0);
+            Arrays.fill(entry.getValue(), (byte) 0);
+        }
+
+        clearOwnKeys();
+    }
+
+    private static void clearOwnKeys() {
+        byte[][] keys = {ownSignPublicKey, ownSignSecretKey, ownBoxPublicKey, ownBoxSecretKey};
+        for (byte[] key : keys) {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+        ownSignPublicKey = null;
+        ownSignSecretKey = null;
+        ownBoxPublicKey = null;
+        ownBoxSecretKey = null;
+    }
+}
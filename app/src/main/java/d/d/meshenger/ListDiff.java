@@ -0,0 +1,70 @@
+package d.d.meshenger;
+
+import android.view.View;
+import android.widget.Adapter;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+* Difference between the rows shown in a list and a new version.
+* Rows are small value objects, so changes of shared objects
+* (e.g. the state of a contact) are found by comparing with the
+* rows that were shown. Meant to be computed off the main thread.
+*/
+class ListDiff<T extends ListDiff.Row> {
+
+    interface Row {
+        // same id means same item, equals() compares the shown content
+        Object getId();
+    }
+
+    final List<T> oldRows;
+    final List<T> newRows;
+    // rows were added, removed or moved
+    final boolean structural;
+    // positions of rows with changed content
+    final List<Integer> changed;
+
+    private ListDiff(List<T> oldRows, List<T> newRows, boolean structural, List<Integer> changed) {
+        this.oldRows = oldRows;
+        this.newRows = newRows;
+        this.structural = structural;
+        this.changed = changed;
+    }
+
+    static <T extends Row> ListDiff<T> compute(List<T> oldRows, List<T> newRows) {
+        List<Integer> changed = new ArrayList<>();
+
+        if (oldRows.size() != newRows.size()) {
+            return new ListDiff<>(oldRows, newRows, true, changed);
+        }
+
+        for (int i = 0; i < newRows.size(); i += 1) {
+            T oldRow = oldRows.get(i);
+            T newRow = newRows.get(i);
+            if (!oldRow.getId().equals(newRow.getId())) {
+                return new ListDiff<>(oldRows, newRows, true, changed);
+            }
+            if (!oldRow.equals(newRow)) {
+                changed.add(i);
+            }
+        }
+
+        return new ListDiff<>(oldRows, newRows, false, changed);
+    }
+
+    boolean isEmpty() {
+        return !this.structural && this.changed.isEmpty();
+    }
+
+    // bind the row at position again if it is visible
+    static void rebindRow(ListView listView, Adapter adapter, int position) {
+        View child = listView.getChildAt(position - listView.getFirstVisiblePosition());
+        if (child != null) {
+            adapter.getView(position, child, listView);
+        }
+    }
+}
@@ -160,12 +160,10 @@ public class MainActivity extends MeshengerActivity implements ServiceConnection
             return;
         }
 
-        int missedCalls = 0;
-        Date since = this.eventListAccessed;
-        for (CallEvent event : this.binder.getEventsCopy()) {
-            if (event.date.compareTo(since) >= 0 && event.isMissedCall()) {
-                missedCalls += 1;
-            }
+        int missedCalls = this.binder.getMissedCallCount(this.eventListAccessed);
+        if (this.sectionsPageAdapter == null || this.sectionsPageAdapter.missedCalls == missedCalls) {
+            // nothing to update
+            return;
         }
 
         this.sectionsPageAdapter.missedCalls = missedCalls;
@@ -177,7 +175,7 @@ public class MainActivity extends MeshengerActivity implements ServiceConnection
     private BroadcastReceiver refreshEventListReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            eventListFragment.refreshEventList();
+            eventListFragment.onEventsChanged(intent);
 
             updateMissedCallsCounter();
         }
@@ -186,7 +184,7 @@ public class MainActivity extends MeshengerActivity implements ServiceConnection
     private BroadcastReceiver refreshContactListReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            contactListFragment.refreshContactList();
+            contactListFragment.onContactsChanged(intent);
         }
     };
 
@@ -19,36 +19,63 @@ import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.widget.Toast;
 
-import org.json.JSONObject;
-import org.libsodium.jni.Sodium;
-
-import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.support.v4.app.NotificationCompat.PRIORITY_MIN;
 
 
-public class MainService extends Service implements Runnable {
+public class MainService extends Service implements Runnable, Signaling.Events {
     private Database db = null;
     private boolean first_start = false;
     private String database_path = "";
     private String database_password = "";
+    private DatabaseStore store = null;
+    // delay writes so that several changes result in a single write
+    private static final int SAVE_DELAY_MS = 500;
+    private Handler handler = null;
+    // set from any thread, cleared before the database is captured
+    private final AtomicBoolean save_scheduled = new AtomicBoolean(false);
+    private final Runnable saveTask = () -> {
+        this.save_scheduled.set(false);
+        if (this.db != null && this.store != null) {
+            this.store.storeAsync(this.db);
+        }
+    };
 
     public static final int serverPort = 10001;
-    private ServerSocket server;
+
+    // what has changed, sent along with refresh_contact_list and refresh_event_list
+    static final String EXTRA_CHANGE = "EXTRA_CHANGE";
+    // public key of the contact, if only one contact has changed
+    static final String EXTRA_PUBLIC_KEY = "EXTRA_PUBLIC_KEY";
+    static final String CHANGE_CONTACT_ADDED = "contact_added";
+    static final String CHANGE_CONTACT_REMOVED = "contact_removed";
+    static final String CHANGE_CONTACT_STATE = "contact_state";
+    static final String CHANGE_EVENT_ADDED = "event_added";
+    static final String CHANGE_EVENTS_CLEARED = "events_cleared";
+    private ConnectionServer server;
 
     private volatile boolean run = true;
-    private RTCCall currentCall = null;
+    // the service owns the call state, the call is only replaced as a whole
+    private final AtomicReference<RTCCall> currentCall = new AtomicReference<>();
 
-    private ArrayList<CallEvent> events = null;
+    // call history, stored next to the database
+    private CallEventLog eventLog = null;
+    // events shown in the list
+    private static final int EVENT_LIST_SIZE = 200;
 
     private MainBinder mainBinder = new MainBinder(this);
+    private PingScheduler pingScheduler = new PingScheduler(mainBinder);
+    private ControlChannelPool controlChannels = new ControlChannelPool(mainBinder, pingScheduler);
+    private Signaling signaling = new Signaling(this, Signaling.DEFAULT_TRANSPORT, serverPort);
 
     private int NOTIFICATION = 42;
 
@@ -57,34 +84,134 @@ public class MainService extends Service implements Runnable {
         super.onCreate();
 
         this.database_path = this.getFilesDir() + "/database.bin";
+        this.handler = new Handler(getMainLooper());
 
         // handle incoming connections
         new Thread(this).start();
-
-        events = new ArrayList<>();
     }
 
     private void loadDatabase() {
         try {
-            if ((new File(this.database_path)).exists()) {
+            if (this.store != null) {
+                flushDatabase();
+                this.store.close();
+            }
+            this.store = new DatabaseStore(this.database_path, this.database_password);
+            this.store.setIdleListener(() -> {
+                LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent("database_saved"));
+            });
+
+            if (this.store.exists()) {
                 // open existing database
-                this.db = Database.load(this.database_path, this.database_password);
+                this.db = this.store.load();
                 this.first_start = false;
             } else {
                 // create new database
                 this.db = new Database();
                 this.first_start = true;
             }
+
+            this.signaling.setDatabase(this.db);
+            openEventLog();
         } catch (Exception e) {
             // ignore
         }
     }
 
+    private void openEventLog() {
+        if (this.eventLog != null) {
+            this.eventLog.close();
+        }
+
+        CallEventLog eventLog = new CallEventLog(this.database_path, CallEventLog.DEFAULT_CAPACITY);
+        Database db = this.db;
+        String password = this.database_password;
+        this.eventLog = eventLog;
+
+        runOnWriter(() -> {
+            Crypto.DatabaseKey key = getDatabaseKey(db, password);
+            try {
+                eventLog.open(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (key != null) {
+                    key.destroy();
+                }
+            }
+        });
+    }
+
+    // encrypt the call history with the (new) key of the database
+    private void updateEventLogKey() {
+        CallEventLog eventLog = this.eventLog;
+        Database db = this.db;
+        String password = this.database_password;
+        if (eventLog == null || db == null) {
+            return;
+        }
+
+        runOnWriter(() -> {
+            Crypto.DatabaseKey key = getDatabaseKey(db, password);
+            try {
+                eventLog.setKey(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (key != null) {
+                    key.destroy();
+                }
+            }
+        });
+    }
+
+    // derives the key only if the password has changed, returns a copy
+    private static Crypto.DatabaseKey getDatabaseKey(Database db, String password) {
+        if (password == null || password.isEmpty()) {
+            return null;
+        }
+        return db.getKey(password);
+    }
+
+    /*
+    * Key derivations and event log writes run on the writer thread
+    * of the store, so they happen in order and not on the main thread.
+    */
+    private void runOnWriter(Runnable task) {
+        DatabaseStore store = this.store;
+        if (store != null) {
+            store.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private void declineCurrentCall() {
+        RTCCall call = this.currentCall.get();
+        if (call != null) {
+            call.decline();
+        }
+    }
+
+    // write the database in the background after a short delay
     private void saveDatabase() {
-        try {
-            Database.store(MainService.this.database_path, MainService.this.db, MainService.this.database_password);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (this.save_scheduled.compareAndSet(false, true)) {
+            this.handler.postDelayed(this.saveTask, SAVE_DELAY_MS);
+        }
+    }
+
+    // write scheduled changes now and wait for all writes
+    private void flushDatabase() {
+        // in this order, a save scheduled in between is still posted and runs later
+        this.handler.removeCallbacks(this.saveTask);
+        this.save_scheduled.set(false);
+
+        if (this.db != null && this.store != null) {
+            try {
+                this.store.store(this.db);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -92,53 +219,37 @@ public class MainService extends Service implements Runnable {
     public void onDestroy() {
         super.onDestroy();
         this.run = false;
+        this.pingScheduler.shutdown();
 
         // The database might be null here if no correct
         // database password was supplied to open it.
-
-        if (this.db != null) {
-            try {
-                Database.store(this.database_path, this.db, this.database_password);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        flushDatabase();
 
         // shutdown listening socket and say goodbye
-        if (this.db != null && this.server != null && this.server.isBound() && !this.server.isClosed()) {
+        if (this.db != null && this.server != null && this.server.isRunning()) {
             try {
-                byte[] ownPublicKey = this.db.settings.getPublicKey();
-                byte[] ownSecretKey = this.db.settings.getSecretKey();
-                String message = "{\"action\": \"status_change\", \"status\", \"offline\"}";
+                Message message = Message.statusChange("offline");
 
                 for (Contact contact : this.db.contacts) {
                     if (contact.getState() == Contact.State.OFFLINE) {
                         continue;
                     }
 
-                    byte[] encrypted = Crypto.encryptMessage(message, contact.getPublicKey(), ownPublicKey, ownSecretKey);
-                    if (encrypted == null) {
-                        continue;
-                    }
-
-                    Socket socket = null;
-                    try {
-                        socket = contact.createSocket();
-                        if (socket == null) {
+                    // use open control channel
+                    ControlChannel channel = this.controlChannels.getOpen(contact);
+                    if (channel != null) {
+                        try {
+                            channel.send(message);
                             continue;
+                        } catch (IOException e) {
+                            // try a new connection
                         }
+                    }
 
-                        PacketWriter pw = new PacketWriter(socket);
-                        pw.writeMessage(encrypted);
-                        socket.close();
+                    try {
+                        this.signaling.send(contact, message);
                     } catch (Exception e) {
-                        if (socket != null) {
-                            try {
-                                socket.close();
-                            } catch (Exception ee) {
-                                // ignore
-                            }
-                        }
+                        // contact not reachable
                     }
                 }
 
@@ -148,6 +259,16 @@ public class MainService extends Service implements Runnable {
             }
         }
 
+        this.controlChannels.shutdown();
+
+        if (this.store != null) {
+            this.store.close();
+        }
+
+        if (this.eventLog != null) {
+            this.eventLog.close();
+        }
+
         if (this.db != null) {
             // zero keys from memory
             this.db.onDestroy();
@@ -213,129 +334,35 @@ public class MainService extends Service implements Runnable {
         return START_NOT_STICKY;
     }
 
-    private void handleClient(MainBinder binder, Socket client) {
-        // just a precaution
-        if (this.db == null) {
-            return;
-        }
-
-        byte[] clientPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
-        byte[] ownSecretKey = this.db.settings.getSecretKey();
-        byte[] ownPublicKey = this.db.settings.getPublicKey();
-
-        try {
-            PacketWriter pw = new PacketWriter(client);
-            PacketReader pr = new PacketReader(client);
-            Contact contact = null;
-
-            InetSocketAddress remote_address = (InetSocketAddress) client.getRemoteSocketAddress();
-            log("incoming connection from " + remote_address);
-
-            while (true) {
-                byte[] request = pr.readMessage();
-                if (request == null) {
-                    break;
-                }
-
-                String decrypted = Crypto.decryptMessage(request, clientPublicKey, ownPublicKey, ownSecretKey);
-                if (decrypted == null) {
-                    log("decryption failed");
-                    break;
-                }
-
-                if (contact == null) {
-                    for (Contact c : this.db.contacts) {
-                        if (Arrays.equals(c.getPublicKey(), clientPublicKey)) {
-                            contact = c;
-                        }
-                    }
-
-                    if (contact == null && this.db.settings.getBlockUnknown()) {
-                        if (this.currentCall != null) {
-                            log("block unknown contact => decline");
-                            this.currentCall.decline();
-                        }
-                        break;
-                    }
-
-                    if (contact != null && contact.getBlocked()) {
-                        if (this.currentCall != null) {
-                            log("blocked contact => decline");
-                            this.currentCall.decline();
-                        }
-                        break;
-                    }
-
-                    if (contact == null) {
-                        // unknown caller
-                        contact = new Contact("", clientPublicKey.clone(), new ArrayList<>());
-                    }
-                }
-
-                // suspicious change of identity during connection...
-                if (!Arrays.equals(contact.getPublicKey(), clientPublicKey)) {
-                    log("suspicious change of identity");
-                    continue;
-                }
-
-                // remember last good address (the outgoing port is random and not the server port)
-                contact.setLastWorkingAddress(
-                    new InetSocketAddress(remote_address.getAddress(), MainService.serverPort)
-                );
-
-                JSONObject obj = new JSONObject(decrypted);
-                String action = obj.optString("action", "");
-
-                switch (action) {
-                    case "call": {
-                        // someone calls us
-                        log("got call...");
-                        String offer = obj.getString("offer");
-                        this.currentCall = new RTCCall(this, binder, contact, client, offer);
-
-                        // respond that we accept the call
-
-                        byte[] encrypted = Crypto.encryptMessage("{\"action\":\"ringing\"}", contact.getPublicKey(), ownPublicKey, ownSecretKey);
-                        pw.writeMessage(encrypted);
+    @Override
+    public void onContactState(byte[] publicKey, Contact.State state) {
+        this.mainBinder.setContactState(publicKey, state);
+    }
 
-                        Intent intent = new Intent(this, CallActivity.class);
-                        intent.setAction("ACTION_INCOMING_CALL");
-                        intent.putExtra("EXTRA_CONTACT", contact);
-                        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                        startActivity(intent);
-                        return;
-                    }
-                    case "ping": {
-                        log("got ping...");
-                        // someone wants to know if we are online
-                        binder.setContactState(contact.getPublicKey(), Contact.State.ONLINE);
-                        byte[] encrypted = Crypto.encryptMessage("{\"action\":\"pong\"}", contact.getPublicKey(), ownPublicKey, ownSecretKey);
-                        pw.writeMessage(encrypted);
-                        break;
-                    }
-                    case "status_change": {
-                        if (obj.optString("status", "").equals("offline")) {
-                            binder.setContactState(contact.getPublicKey(), Contact.State.OFFLINE);
-                        } else {
-                            log("Received unknown status_change: " + obj.getString("status"));
-                        }
-                    }
-                }
-            }
+    @Override
+    public void onIncomingCall(Contact contact, Socket socket, String offer) {
+        this.currentCall.set(new RTCCall(this, this.mainBinder, contact, socket, offer));
+
+        Intent intent = new Intent(this, CallActivity.class);
+        intent.setAction("ACTION_INCOMING_CALL");
+        intent.putExtra("EXTRA_CONTACT", contact);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(intent);
+    }
 
-            log("call disconnected");
-            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent("call_declined"));
+    @Override
+    public void onBlocked(byte[] publicKey) {
+        declineCurrentCall();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            log("client disconnected (exception)");
-            if (this.currentCall != null) {
-                this.currentCall.decline();
-            }
-        }
+    @Override
+    public void onConnectionClosed() {
+        LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent("call_declined"));
+    }
 
-        // zero out key
-        Arrays.fill(clientPublicKey, (byte) 0);
+    @Override
+    public void onConnectionError(Exception e) {
+        declineCurrentCall();
     }
 
     @Override
@@ -350,23 +377,17 @@ public class MainService extends Service implements Runnable {
                 }
             }
 
-            server = new ServerSocket(serverPort);
-            MainBinder binder = (MainBinder) onBind(null);
-
-            while (this.run) {
-                try {
-                    Socket socket = server.accept();
-                    new Thread(() -> handleClient(binder, socket)).start();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
+            server = new ConnectionServer(serverPort, this.signaling);
+            server.open();
         } catch (IOException e) {
             e.printStackTrace();
             new Handler(getMainLooper()).post(() -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
             stopSelf();
             return;
         }
+
+        // handle incoming connections until the service is destroyed
+        server.run();
     }
 
     /*
@@ -384,7 +405,17 @@ public class MainService extends Service implements Runnable {
         }
 
         RTCCall getCurrentCall() {
-            return this.service.currentCall;
+            return this.service.currentCall.get();
+        }
+
+        // outgoing call started by an activity
+        void setCurrentCall(RTCCall call) {
+            this.service.currentCall.set(call);
+        }
+
+        // forget the call if it has not been replaced by a newer one
+        void releaseCurrentCall(RTCCall call) {
+            this.service.currentCall.compareAndSet(call, null);
         }
 
         boolean isFirstStart() {
@@ -392,49 +423,60 @@ public class MainService extends Service implements Runnable {
         }
 
         Contact getContactByPublicKey(byte[] pubKey) {
-            for (Contact contact : this.service.db.contacts) {
-                if (Arrays.equals(contact.getPublicKey(), pubKey)) {
-                    return contact;
-                }
-            }
-            return null;
+            return this.service.db.contacts.get(pubKey);
         }
 
         Contact getContactByName(String name) {
-            for (Contact contact : this.service.db.contacts) {
-                if (contact.getName().equals(name)) {
-                    return contact;
-                }
-            }
-            return null;
+            return this.service.db.contacts.getByName(name);
         }
 
+        // add or replace contact
         void addContact(Contact contact) {
-            this.service.db.addContact(contact);
-            saveDatabase();
-            LocalBroadcastManager.getInstance(this.service).sendBroadcast(new Intent("refresh_contact_list"));
+            this.service.store.addContact(this.service.db, contact);
+            sendChange("refresh_contact_list", CHANGE_CONTACT_ADDED, contact.getPublicKey());
         }
 
         void deleteContact(byte[] pubKey) {
-            this.service.db.deleteContact(pubKey);
-            saveDatabase();
-            LocalBroadcastManager.getInstance(this.service).sendBroadcast(new Intent("refresh_contact_list"));
+            this.service.store.deleteContact(this.service.db, pubKey);
+            sendChange("refresh_contact_list", CHANGE_CONTACT_REMOVED, pubKey);
         }
 
         void setContactState(byte[] publicKey, Contact.State state) {
-            Contact contact = getContactByPublicKey(publicKey);
-            if (contact != null && contact.getState() != state) {
-                contact.setState(state);
-                LocalBroadcastManager.getInstance(this.service).sendBroadcast(new Intent("refresh_contact_list"));
+            if (updateContactState(publicKey, state)) {
+                sendChange("refresh_contact_list", CHANGE_CONTACT_STATE, publicKey);
             }
         }
 
+        // publicKey may be null
+        void sendChange(String action, String change, byte[] publicKey) {
+            Intent intent = new Intent(action);
+            intent.putExtra(EXTRA_CHANGE, change);
+            if (publicKey != null) {
+                intent.putExtra(EXTRA_PUBLIC_KEY, publicKey.clone());
+            }
+            LocalBroadcastManager.getInstance(this.service).sendBroadcast(intent);
+        }
+
+        // update state without notification, return true if the state has changed
+        boolean updateContactState(byte[] publicKey, Contact.State state) {
+            if (state == Contact.State.ONLINE) {
+                this.service.pingScheduler.resetBackoff(publicKey);
+            }
+
+            Contact contact = getContactByPublicKey(publicKey);
+            return contact != null && contact.getAndSetState(state) != state;
+        }
+
         String getDatabasePassword() {
             return this.service.database_password;
         }
 
         void setDatabasePassword(String password) {
             this.service.database_password = password;
+            if (this.service.store != null) {
+                this.service.store.setPassword(password);
+            }
+            this.service.updateEventLogKey();
         }
 
         Database getDatabase() {
@@ -449,8 +491,11 @@ public class MainService extends Service implements Runnable {
             if (db != null) {
                 if (this.service.db == null) {
                     this.service.db = db;
+                    this.service.signaling.setDatabase(db);
                 } else {
                     this.service.db = db;
+                    this.service.signaling.setDatabase(db);
+                    this.service.updateEventLogKey();
                     saveDatabase();
                 }
             }
@@ -459,12 +504,11 @@ public class MainService extends Service implements Runnable {
         void pingContacts() {
             Log.d(this, "pingContacts");
             if (this.service.db != null) {
-                new Thread(new PingRunnable(
-                    this,
+                this.service.pingScheduler.pingContacts(
                     getContactsCopy(),
                     getSettings().getPublicKey(),
-                    getSettings().getSecretKey())
-                ).start();
+                    getSettings().getSecretKey()
+                );
             }
         }
 
@@ -472,115 +516,94 @@ public class MainService extends Service implements Runnable {
             this.service.saveDatabase();
         }
 
+        // changes that are not written yet, "database_saved" is sent when all are written
+        boolean hasPendingWrites() {
+            DatabaseStore store = this.service.store;
+            return this.service.save_scheduled.get() || (store != null && store.hasPendingWrites());
+        }
+
+        Signaling getSignaling() {
+            return this.service.signaling;
+        }
+
+        ControlChannelPool getControlChannels() {
+            return this.service.controlChannels;
+        }
+
         Settings getSettings() {
             return this.service.db.settings;
         }
 
-        // return a cloned list
+        // return an immutable snapshot, it is not changed by later updates
         List<Contact> getContactsCopy() {
-           return new ArrayList<>(this.service.db.contacts);
+           return this.service.db.contacts.snapshot();
         }
 
         void addCallEvent(Contact contact, CallEvent.Type type) {
             InetSocketAddress last_working = contact.getLastWorkingAddress();
-            this.service.events.add(new CallEvent(
+            CallEvent event = new CallEvent(
                 contact.getPublicKey(),
                     (last_working != null) ? last_working.getAddress() : null,
                 type
-            ));
-            LocalBroadcastManager.getInstance(this.service).sendBroadcast(new Intent("refresh_event_list"));
-        }
-
-        // return a cloned list
-        List<CallEvent> getEventsCopy() {
-            return new ArrayList<>(this.service.events);
-        }
+            );
 
-        void clearEvents() {
-            this.service.events.clear();
-            LocalBroadcastManager.getInstance(this.service).sendBroadcast(new Intent("refresh_event_list"));
+            CallEventLog eventLog = this.service.eventLog;
+            this.service.runOnWriter(() -> {
+                if (eventLog != null) {
+                    try {
+                        eventLog.add(event);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                // after the event has been written
+                sendChange("refresh_event_list", CHANGE_EVENT_ADDED, contact.getPublicKey());
+            });
         }
-    }
-
-    static class PingRunnable implements Runnable {
-        private List<Contact> contacts;
-        byte[] ownPublicKey;
-        byte[] ownSecretKey;
-        MainBinder binder;
 
-        PingRunnable(MainBinder binder, List<Contact> contacts, byte[] ownPublicKey, byte[] ownSecretKey) {
-            this.binder = binder;
-            this.contacts = contacts;
-            this.ownPublicKey = ownPublicKey;
-            this.ownSecretKey = ownSecretKey;
+        // return an immutable list of the latest events, oldest first
+        List<CallEvent> getEventsCopy() {
+            CallEventLog eventLog = this.service.eventLog;
+            if (eventLog != null) {
+                try {
+                    return eventLog.getLatest(EVENT_LIST_SIZE);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return Collections.emptyList();
         }
 
-        @Override
-        public void run() {
-            for (Contact contact : contacts) {
-                Socket socket = null;
-                byte[] publicKey = contact.getPublicKey();
-
+        // events from newest to oldest with from <= time < to, of a single contact if publicKey is set
+        List<CallEvent> getEvents(long from, long to, byte[] publicKey, int offset, int limit) {
+            CallEventLog eventLog = this.service.eventLog;
+            if (eventLog != null) {
                 try {
-                    socket = contact.createSocket();
-                    if (socket == null) {
-                        this.binder.setContactState(publicKey, Contact.State.OFFLINE);
-                        continue;
-                    }
-
-                    PacketWriter pw = new PacketWriter(socket);
-                    PacketReader pr = new PacketReader(socket);
-
-                    log("send ping to " + contact.getName());
-
-                    byte[] encrypted = Crypto.encryptMessage("{\"action\":\"ping\"}", publicKey, ownPublicKey, ownSecretKey);
-                    if (encrypted == null) {
-                        socket.close();
-                        continue;
-                    }
-
-                    pw.writeMessage(encrypted);
-
-                    byte[] request = pr.readMessage();
-                    if (request == null) {
-                        socket.close();
-                        continue;
-                    }
-
-                    String decrypted = Crypto.decryptMessage(request, publicKey, ownPublicKey, ownSecretKey);
-                    if (decrypted == null) {
-                        log("decryption failed");
-                        socket.close();
-                        continue;
-                    }
-
-                    JSONObject obj = new JSONObject(decrypted);
-                    String action = obj.optString("action", "");
-                    if (action.equals("pong")) {
-                        log("got pong");
-                        this.binder.setContactState(publicKey, Contact.State.ONLINE);
-                    }
-
-                    socket.close();
-                } catch (Exception e) {
-                    this.binder.setContactState(publicKey, Contact.State.OFFLINE);
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                        } catch (Exception ee) {
-                            // ignore
-                        }
-                    }
+                    return eventLog.query(from, to, publicKey, offset, limit);
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            return new ArrayList<>();
+        }
 
-            log("send refresh_contact_list");
-            LocalBroadcastManager.getInstance(this.binder.getContext()).sendBroadcast(new Intent("refresh_contact_list"));
+        int getMissedCallCount(Date since) {
+            CallEventLog eventLog = this.service.eventLog;
+            return (eventLog != null) ? eventLog.countMissedCalls(since.getTime()) : 0;
         }
 
-        private void log(String data) {
-            Log.d(this, data);
+        void clearEvents() {
+            CallEventLog eventLog = this.service.eventLog;
+            this.service.runOnWriter(() -> {
+                if (eventLog != null) {
+                    try {
+                        eventLog.clear();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                sendChange("refresh_event_list", CHANGE_EVENTS_CLEARED, null);
+            });
         }
     }
 
@@ -0,0 +1,432 @@
+package d.d.meshenger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/*
+* Signaling message exchanged between contacts.
+*
+* Messages are encoded as JSON or in a compact binary format:
+*
+*   [0x00][version][action][field]...
+*   field: [tag][varint length][data]
+*
+* JSON text never starts with a zero byte, so both formats can be told
+* apart. The binary format is only sent to contacts that announced it,
+* either by sending a binary message or by a "version" entry in JSON.
+* Older versions ignore the "version" entry and keep using JSON.
+*/
+class Message {
+    // version of the binary format
+    static final int VERSION = 1;
+    // compress SDP above this size
+    static final int COMPRESS_THRESHOLD = 256;
+    static final int MAX_SIZE = 1024 * 1024;
+
+    private static final byte MAGIC = 0;
+    private static final int FIELD_SDP = 1;
+    private static final int FIELD_SDP_DEFLATE = 2;
+    private static final int FIELD_STATUS = 3;
+    private static final int FIELD_SESSION_KEY = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    enum Action {
+        // the tag must not change
+        PING(1, "ping"),
+        PONG(2, "pong"),
+        CALL(3, "call"),
+        RINGING(4, "ringing"),
+        CONNECTED(5, "connected"),
+        DISMISSED(6, "dismissed"),
+        STATUS_CHANGE(7, "status_change"),
+        CONTROL_OPEN(8, "control_open"),
+        CONTROL_ACK(9, "control_ack");
+
+        final int tag;
+        final String name;
+
+        Action(int tag, String name) {
+            this.tag = tag;
+            this.name = name;
+        }
+
+        static Action fromTag(int tag) {
+            for (Action action : values()) {
+                if (action.tag == tag) {
+                    return action;
+                }
+            }
+            return null;
+        }
+
+        static Action fromName(String name) {
+            for (Action action : values()) {
+                if (action.name.equals(name)) {
+                    return action;
+                }
+            }
+            return null;
+        }
+    }
+
+    // known format version of contacts, key is the hex encoded public key
+    private static final ConcurrentHashMap<String, Integer> versions = new ConcurrentHashMap<>();
+    private static final int MAX_VERSIONS = 1024;
+
+    final Action action;
+    // offer of a call or answer of connected
+    String sdp;
+    // status of status_change
+    String status;
+    // ephemeral key of control_open and control_ack
+    byte[] sessionKey;
+    // format version of the sender, 0 for JSON of older versions
+    int version;
+    // name of an action not known to this version
+    String unknownAction;
+
+    Message(Action action) {
+        this.action = action;
+        this.version = VERSION;
+    }
+
+    static Message ping() {
+        return new Message(Action.PING);
+    }
+
+    static Message pong() {
+        return new Message(Action.PONG);
+    }
+
+    static Message call(String offer) {
+        Message message = new Message(Action.CALL);
+        message.sdp = offer;
+        return message;
+    }
+
+    static Message ringing() {
+        return new Message(Action.RINGING);
+    }
+
+    static Message connected(String answer) {
+        Message message = new Message(Action.CONNECTED);
+        message.sdp = answer;
+        return message;
+    }
+
+    static Message dismissed() {
+        return new Message(Action.DISMISSED);
+    }
+
+    static Message statusChange(String status) {
+        Message message = new Message(Action.STATUS_CHANGE);
+        message.status = status;
+        return message;
+    }
+
+    static Message controlOpen(byte[] sessionKey) {
+        Message message = new Message(Action.CONTROL_OPEN);
+        message.sessionKey = sessionKey;
+        return message;
+    }
+
+    static Message controlAck(byte[] sessionKey) {
+        Message message = new Message(Action.CONTROL_ACK);
+        message.sessionKey = sessionKey;
+        return message;
+    }
+
+    boolean is(Action action) {
+        return this.action == action;
+    }
+
+    /*
+    * Remember the format version a contact has used.
+    */
+    static void setVersion(byte[] publicKey, int version) {
+        String key = Utils.byteArrayToHexString(publicKey);
+        Integer current = versions.get(key);
+        if (current == null || current != version) {
+            if (versions.size() >= MAX_VERSIONS) {
+                versions.clear();
+            }
+            versions.put(key, version);
+        }
+    }
+
+    // contact is known to understand the binary format
+    static boolean supportsBinary(byte[] publicKey) {
+        Integer version = versions.get(Utils.byteArrayToHexString(publicKey));
+        return (version != null && version >= 1);
+    }
+
+    // encode using the best format known to be supported by the contact
+    byte[] encodeFor(byte[] publicKey) {
+        return encode(supportsBinary(publicKey));
+    }
+
+    byte[] encode(boolean binary) {
+        return binary ? toBinary() : toJSON().getBytes(UTF8);
+    }
+
+    String toJSON() {
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("action", this.action.name);
+            // announce the binary format
+            obj.put("version", VERSION);
+            if (this.sdp != null) {
+                obj.put(this.action == Action.CONNECTED ? "answer" : "offer", this.sdp);
+            }
+            if (this.status != null) {
+                obj.put("status", this.status);
+            }
+            if (this.sessionKey != null) {
+                obj.put("session_key", Utils.byteArrayToHexString(this.sessionKey));
+            }
+            return obj.toString();
+        } catch (JSONException e) {
+            // not expected
+            throw new IllegalStateException(e);
+        }
+    }
+
+    byte[] toBinary() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(this.action.tag);
+
+        if (this.sdp != null) {
+            byte[] sdp = this.sdp.getBytes(UTF8);
+            byte[] compressed = (sdp.length > COMPRESS_THRESHOLD) ? deflate(sdp) : null;
+            if (compressed != null && compressed.length < sdp.length) {
+                writeField(out, FIELD_SDP_DEFLATE, compressed);
+            } else {
+                writeField(out, FIELD_SDP, sdp);
+            }
+        }
+
+        if (this.status != null) {
+            writeField(out, FIELD_STATUS, this.status.getBytes(UTF8));
+        }
+
+        if (this.sessionKey != null) {
+            writeField(out, FIELD_SESSION_KEY, this.sessionKey);
+        }
+
+        return out.toByteArray();
+    }
+
+    static Message decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    // returns null for invalid messages
+    static Message decode(byte[] data, int offset, int length) {
+        if (data == null || length < 1) {
+            return null;
+        }
+
+        if (data[offset] == MAGIC) {
+            return fromBinary(data, offset, length);
+        }
+
+        return fromJSON(new String(data, offset, length, UTF8));
+    }
+
+    static Message fromJSON(String json) {
+        try {
+            JSONObject obj = new JSONObject(json);
+            String name = obj.optString("action", "");
+            Action action = Action.fromName(name);
+            Message message = new Message(action);
+            message.version = obj.optInt("version", 0);
+
+            if (action == null) {
+                message.unknownAction = name;
+                return message;
+            }
+
+            switch (action) {
+                case CALL:
+                    message.sdp = obj.getString("offer");
+                    break;
+                case CONNECTED:
+                    message.sdp = obj.getString("answer");
+                    break;
+                case STATUS_CHANGE:
+                    message.status = obj.getString("status");
+                    break;
+                case CONTROL_OPEN:
+                case CONTROL_ACK:
+                    if (obj.has("session_key")) {
+                        message.sessionKey = Utils.hexStringToByteArray(obj.getString("session_key"));
+                    }
+                    break;
+            }
+
+            return message;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static Message fromBinary(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (length < 3) {
+            return null;
+        }
+
+        int version = data[offset + 1] & 0xFF;
+        int tag = data[offset + 2] & 0xFF;
+        Action action = Action.fromTag(tag);
+        Message message = new Message(action);
+        message.version = version;
+
+        if (action == null) {
+            message.unknownAction = "tag " + tag;
+            return message;
+        }
+
+        int[] pos = {offset + 3};
+        while (pos[0] < end) {
+            int field = data[pos[0]] & 0xFF;
+            pos[0] += 1;
+
+            int size = readVarint(data, pos, end);
+            if (size < 0 || size > (end - pos[0])) {
+                return null;
+            }
+
+            int start = pos[0];
+            pos[0] += size;
+
+            switch (field) {
+                case FIELD_SDP:
+                    message.sdp = new String(data, start, size, UTF8);
+                    break;
+                case FIELD_SDP_DEFLATE: {
+                    byte[] sdp = inflate(data, start, size);
+                    if (sdp == null) {
+                        return null;
+                    }
+                    message.sdp = new String(sdp, UTF8);
+                    break;
+                }
+                case FIELD_STATUS:
+                    message.status = new String(data, start, size, UTF8);
+                    break;
+                case FIELD_SESSION_KEY: {
+                    byte[] key = new byte[size];
+                    System.arraycopy(data, start, key, 0, size);
+                    message.sessionKey = key;
+                    break;
+                }
+                default:
+                    // field of a newer version
+                    break;
+            }
+        }
+
+        switch (action) {
+            case CALL:
+            case CONNECTED:
+                if (message.sdp == null) {
+                    return null;
+                }
+                break;
+            case STATUS_CHANGE:
+                if (message.status == null) {
+                    return null;
+                }
+                break;
+        }
+
+        return message;
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int field, byte[] data) {
+        out.write(field);
+        int size = data.length;
+        while (size >= 0x80) {
+            out.write((size & 0x7F) | 0x80);
+            size >>>= 7;
+        }
+        out.write(size);
+        out.write(data, 0, data.length);
+    }
+
+    private static int readVarint(byte[] data, int[] pos, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos[0] >= end) {
+                return -1;
+            }
+            int b = data[pos[0]] & 0xFF;
+            pos[0] += 1;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // truncated data
+                    return null;
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_SIZE) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (this.action != null) ? this.action.name : this.unknownAction;
+    }
+}
@@ -0,0 +1,270 @@
+package d.d.meshenger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*
+* Counters and latency histograms that are always recorded,
+* also in release builds. Recording does not lock or allocate
+* once a metric exists.
+*
+* Histograms use buckets with a relative width of 1/16 (like HdrHistogram
+* with one significant digit), values are microseconds.
+*/
+class Metrics {
+    // limit names with an address or action
+    static final int MAX_METRICS = 256;
+    private static final String OVERFLOW = "other";
+
+    private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static volatile long since = System.currentTimeMillis();
+
+    static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        void increment() {
+            this.value.incrementAndGet();
+        }
+
+        void add(long n) {
+            this.value.addAndGet(n);
+        }
+
+        long get() {
+            return this.value.get();
+        }
+
+        void reset() {
+            this.value.set(0);
+        }
+    }
+
+    static final class Histogram {
+        // values below 2^SUB_BITS have their own bucket
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        // up to 2^40 us (about 12 days)
+        private static final int MAX_EXPONENT = 40;
+        static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+
+            this.counts.incrementAndGet(index(value));
+            this.count.incrementAndGet();
+            this.sum.addAndGet(value);
+
+            long current = this.max.get();
+            while (value > current && !this.max.compareAndSet(current, value)) {
+                current = this.max.get();
+            }
+        }
+
+        // record time since start, start is from System.nanoTime()
+        void recordSince(long start) {
+            record((System.nanoTime() - start) / 1000);
+        }
+
+        long getCount() {
+            return this.count.get();
+        }
+
+        long getMax() {
+            return this.max.get();
+        }
+
+        long getMean() {
+            long count = this.count.get();
+            return (count > 0) ? (this.sum.get() / count) : 0;
+        }
+
+        // highest value of the bucket that holds the percentile (0 - 100)
+        long getPercentile(double percentile) {
+            long count = this.count.get();
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i += 1) {
+                seen += this.counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), this.max.get());
+                }
+            }
+            return this.max.get();
+        }
+
+        // not atomic with concurrent recording
+        void reset() {
+            for (int i = 0; i < BUCKETS; i += 1) {
+                this.counts.set(i, 0);
+            }
+            this.count.set(0);
+            this.sum.set(0);
+            this.max.set(0);
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB_COUNT) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+
+            int top = (int) (value >>> (exponent - SUB_BITS));
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + (top - SUB_COUNT);
+        }
+
+        static long lowestValue(int index) {
+            if (index < 2 * SUB_COUNT) {
+                return index;
+            }
+
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long top = SUB_COUNT + (index % SUB_COUNT);
+            return top << (exponent - SUB_BITS);
+        }
+
+        static long highestValue(int index) {
+            if (index >= BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+            return lowestValue(index + 1) - 1;
+        }
+    }
+
+    static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            if (counters.size() >= MAX_METRICS) {
+                name = OVERFLOW;
+            }
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            if (histograms.size() >= MAX_METRICS) {
+                name = OVERFLOW;
+            }
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    // forget all values, metrics stay registered since callers may hold them
+    static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    private static <T> List<String> sortedNames(Map<String, T> map) {
+        List<String> names = new ArrayList<>(map.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    // human readable dump, times in milliseconds
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("since ").append((System.currentTimeMillis() - since) / 1000).append("s\n\n");
+
+        for (String name : sortedNames(counters)) {
+            sb.append(name).append(": ").append(counters.get(name).get()).append("\n");
+        }
+
+        for (String name : sortedNames(histograms)) {
+            Histogram h = histograms.get(name);
+            sb.append("\n").append(name).append(" (").append(h.getCount()).append(")\n");
+            sb.append(String.format("  p50 %s  p90 %s  p99 %s  max %s\n",
+                millis(h.getPercentile(50)), millis(h.getPercentile(90)), millis(h.getPercentile(99)), millis(h.getMax())));
+        }
+
+        return sb.toString();
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    // export with all buckets, values in microseconds
+    static JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("since", since);
+        obj.put("time", System.currentTimeMillis());
+
+        JSONObject countersObj = new JSONObject();
+        for (String name : sortedNames(counters)) {
+            countersObj.put(name, counters.get(name).get());
+        }
+        obj.put("counters", countersObj);
+
+        JSONObject histogramsObj = new JSONObject();
+        for (String name : sortedNames(histograms)) {
+            Histogram h = histograms.get(name);
+            JSONObject hObj = new JSONObject();
+            hObj.put("count", h.getCount());
+            hObj.put("mean", h.getMean());
+            hObj.put("p50", h.getPercentile(50));
+            hObj.put("p90", h.getPercentile(90));
+            hObj.put("p99", h.getPercentile(99));
+            hObj.put("max", h.getMax());
+
+            // [lowest value, count] of non-empty buckets
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < Histogram.BUCKETS; i += 1) {
+                long count = h.counts.get(i);
+                if (count > 0) {
+                    JSONArray bucket = new JSONArray();
+                    bucket.put(Histogram.lowestValue(i));
+                    bucket.put(count);
+                    buckets.put(bucket);
+                }
+            }
+            hObj.put("buckets", buckets);
+            histogramsObj.put(name, hObj);
+        }
+        obj.put("histograms", histogramsObj);
+
+        return obj;
+    }
+}
@@ -0,0 +1,85 @@
+package d.d.meshenger;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.widget.TextView;
+
+import org.json.JSONException;
+
+
+/*
+* Show the recorded metrics and call setup traces (development mode only).
+*/
+public class MetricsActivity extends MeshengerActivity {
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler();
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            ((TextView) findViewById(R.id.metricsText)).setText(Metrics.dump() + "\n" + Tracer.dump());
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        setTitle(getResources().getString(R.string.menu_metrics));
+
+        findViewById(R.id.ResetButton).setOnClickListener((View v) -> {
+            Metrics.reset();
+            Tracer.clear();
+            this.handler.removeCallbacks(this.refresh);
+            this.refresh.run();
+        });
+
+        findViewById(R.id.ExportButton).setOnClickListener((View v) -> {
+            exportMetrics();
+        });
+
+        findViewById(R.id.ExportTracesButton).setOnClickListener((View v) -> {
+            exportTraces();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        this.refresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        this.handler.removeCallbacks(this.refresh);
+    }
+
+    private void exportMetrics() {
+        try {
+            share(Metrics.toJSON().toString(2));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Chrome trace format, can be opened with chrome://tracing or Perfetto
+    private void exportTraces() {
+        try {
+            share(Tracer.toChromeTrace().toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void share(String text) {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TEXT, text);
+        startActivity(intent);
+    }
+}
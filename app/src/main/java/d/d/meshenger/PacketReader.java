@@ -3,60 +3,56 @@ package d.d.meshenger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 
 /* Read the message size from the header and return the message of the correct size */
 class PacketReader {
     final InputStream is;
-    final byte[] buffer;
-    int pos;
+    final FrameDecoder decoder;
 
     PacketReader(Socket socket) throws IOException {
         this.is = socket.getInputStream();
-        this.buffer = new byte[16000];
-        this.pos = 0;
+        // heap buffer, the stream reads into the backing array without extra copy
+        this.decoder = new FrameDecoder(false);
     }
 
-    private static int readMessageHeader(byte[] packet) {
-        return ((packet[0] & 0xFF) << 24)
-            | ((packet[1] & 0xFF) << 16)
-            | ((packet[2] & 0xFF) << 8)
-            | ((packet[3] & 0xFF) << 0);
+    PacketReader(InputStream is) {
+        this.is = is;
+        this.decoder = new FrameDecoder(false);
     }
 
-    byte[] readMessage() throws IOException {
+    /*
+    * Return the next message as a view into the read buffer.
+    * The view is only valid until the next read.
+    */
+    ByteBuffer readFrame() throws IOException {
         while (true) {
-            int read = is.read(buffer, pos, buffer.length - pos);
-            if (read < 0) {
-                break;
-            }
-
-            pos += read;
-
-            if (pos < 4) {
-                continue;
+            ByteBuffer frame = decoder.nextFrame();
+            if (frame != null) {
+                return frame;
             }
 
-            int len = readMessageHeader(buffer);
-            if (len < 0 || len > buffer.length) {
-                break;
+            if (decoder.isInvalid()) {
+                log("invalid message size");
+                return null;
             }
 
-            // not enough data
-            if (pos < (4 + len)) {
-                continue;
+            if (decoder.readFrom(is) < 0) {
+                return null;
             }
+        }
+    }
 
-            byte[] request = new byte[len];
-            System.arraycopy(buffer, 4, request, 0, request.length);
-
-            // move data of next messgae to the front of the buffer
-            System.arraycopy(buffer, 4 + len, buffer, 0, pos - request.length);
-            pos = 0;
-            return request;
+    byte[] readMessage() throws IOException {
+        ByteBuffer frame = readFrame();
+        if (frame == null) {
+            return null;
         }
 
-        return null;
+        byte[] request = new byte[frame.remaining()];
+        frame.get(request);
+        return request;
     }
 
     private void log(String s) {
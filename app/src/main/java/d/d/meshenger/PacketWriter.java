@@ -3,30 +3,174 @@ package d.d.meshenger;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 
 
-/* Write the message header before the message is send */
+/*
+* Write the message header before the message is send.
+* Header and message go out with a single write call,
+* queued messages are sent together on flush().
+*/
 class PacketWriter {
+    private static final int INITIAL_CAPACITY = 1024;
+    // grown buffers are kept up to this size, e.g. for SDP offers and answers
+    static final int RETAIN_CAPACITY = 64 * 1024;
+    // a larger buffer is released after this many flushes that did not need it
+    static final int SHRINK_FLUSHES = 16;
+    // same limit as for received frames
+    static final int MAX_BUFFER_SIZE = 4 + FrameDecoder.MAX_FRAME_SIZE;
+
     final OutputStream os;
-    final byte[] header;
+    final GatheringByteChannel channel;
+    final ByteBuffer header;
+    // header and message of a gathering write
+    private final ByteBuffer[] srcs;
+    // frames queued for the next flush
+    private byte[] buffer;
+    // wraps buffer for channel writes
+    private ByteBuffer bufferView;
+    private int pos;
+    private int smallFlushes;
 
     public PacketWriter(Socket socket) throws IOException {
-        this.os = socket.getOutputStream();
-        this.header = new byte[4];
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            // socket was created by a channel, use gathering writes
+            this.channel = channel;
+            this.os = null;
+        } else {
+            this.channel = null;
+            this.os = socket.getOutputStream();
+        }
+        this.header = ByteBuffer.allocate(4);
+        this.srcs = new ByteBuffer[]{this.header, null};
+        setBuffer(new byte[INITIAL_CAPACITY]);
+        this.pos = 0;
+        this.smallFlushes = 0;
+    }
+
+    PacketWriter(OutputStream os) {
+        this.os = os;
+        this.channel = null;
+        this.header = ByteBuffer.allocate(4);
+        this.srcs = new ByteBuffer[]{this.header, null};
+        setBuffer(new byte[INITIAL_CAPACITY]);
+        this.pos = 0;
+        this.smallFlushes = 0;
     }
 
-    private static void writeMessageHeader(byte[] packet, int value) {
-        packet[0] = (byte) ((value >> 24) & 0xff);
-        packet[1] = (byte) ((value >> 16) & 0xff);
-        packet[2] = (byte) ((value >> 8) & 0xff);
-        packet[3] = (byte) ((value >> 0) & 0xff);
+    PacketWriter(GatheringByteChannel channel) {
+        this.os = null;
+        this.channel = channel;
+        this.header = ByteBuffer.allocate(4);
+        this.srcs = new ByteBuffer[]{this.header, null};
+        setBuffer(new byte[INITIAL_CAPACITY]);
+        this.pos = 0;
+        this.smallFlushes = 0;
+    }
+
+    private static void writeMessageHeader(byte[] packet, int offset, int value) {
+        packet[offset + 0] = (byte) ((value >> 24) & 0xff);
+        packet[offset + 1] = (byte) ((value >> 16) & 0xff);
+        packet[offset + 2] = (byte) ((value >> 8) & 0xff);
+        packet[offset + 3] = (byte) ((value >> 0) & 0xff);
     }
 
     public void writeMessage(byte[] message) throws IOException {
-    	writeMessageHeader(this.header, message.length);
-    	// need to concatenate?
-    	this.os.write(this.header);
-        this.os.write(message);
+        checkSize(message);
+
+        if (this.pos > 0) {
+            // keep message order
+            queueMessage(message);
+            flush();
+            return;
+        }
+
+        if (this.channel != null && (4 + message.length) > this.buffer.length) {
+            // do not copy a large message
+            this.header.clear();
+            this.header.putInt(message.length);
+            this.header.flip();
+            this.srcs[1] = ByteBuffer.wrap(message);
+            try {
+                long remaining = 4 + message.length;
+                while (remaining > 0) {
+                    remaining -= this.channel.write(this.srcs);
+                }
+            } finally {
+                this.srcs[1] = null;
+            }
+        } else {
+            queueMessage(message);
+            flush();
+        }
+    }
+
+    /*
+    * Append message to the pending frames, nothing is sent until flush()
+    * unless the pending frames would exceed MAX_BUFFER_SIZE.
+    */
+    public void queueMessage(byte[] message) throws IOException {
+        checkSize(message);
+
+        int required = this.pos + 4 + message.length;
+        if (required > MAX_BUFFER_SIZE) {
+            flush();
+            required = 4 + message.length;
+        }
+
+        if (required > this.buffer.length) {
+            byte[] bigger = new byte[Math.min(Math.max(required, 2 * this.buffer.length), MAX_BUFFER_SIZE)];
+            System.arraycopy(this.buffer, 0, bigger, 0, this.pos);
+            setBuffer(bigger);
+        }
+
+        writeMessageHeader(this.buffer, this.pos, message.length);
+        System.arraycopy(message, 0, this.buffer, this.pos + 4, message.length);
+        this.pos = required;
+    }
+
+    // send all queued frames at once
+    public void flush() throws IOException {
+        if (this.pos == 0) {
+            return;
+        }
+
+        if (this.channel != null) {
+            this.bufferView.clear();
+            this.bufferView.limit(this.pos);
+            while (this.bufferView.hasRemaining()) {
+                this.channel.write(this.bufferView);
+            }
+        } else {
+            this.os.write(this.buffer, 0, this.pos);
+            this.os.flush();
+        }
+
+        // do not keep the memory of a rare large message
+        if (this.buffer.length > RETAIN_CAPACITY) {
+            if (this.pos > RETAIN_CAPACITY) {
+                this.smallFlushes = 0;
+            } else if (++this.smallFlushes >= SHRINK_FLUSHES) {
+                setBuffer(new byte[RETAIN_CAPACITY]);
+                this.smallFlushes = 0;
+            }
+        }
+
+        this.pos = 0;
+    }
+
+    private void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.bufferView = ByteBuffer.wrap(buffer);
+    }
+
+    private static void checkSize(byte[] message) throws IOException {
+        if (message.length > FrameDecoder.MAX_FRAME_SIZE) {
+            throw new IOException("message too large: " + message.length);
+        }
     }
 
     private void log(String s) {
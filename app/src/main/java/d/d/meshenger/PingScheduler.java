@@ -0,0 +1,181 @@
+package d.d.meshenger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+* Ping contacts to find out if they are online.
+* A round pings several contacts at the same time and
+* sends a single refresh_contact_list broadcast at the end.
+* Contacts that were offline are skipped for a while.
+*/
+class PingScheduler {
+    static final int MAX_CONCURRENT_PINGS = 4;
+    static final long BACKOFF_BASE_MS = 15 * 1000;
+    static final long BACKOFF_MAX_MS = 5 * 60 * 1000;
+
+    private static class Backoff {
+        int failures;
+        long nextPing;
+    }
+
+    private final MainService.MainBinder binder;
+    private final ExecutorService executor;
+    private final AtomicBoolean running;
+    // start of the current round
+    private volatile long roundStart;
+    // key is the hex encoded public key
+    private final Map<String, Backoff> backoffs;
+
+    PingScheduler(MainService.MainBinder binder) {
+        this.binder = binder;
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_PINGS);
+        this.running = new AtomicBoolean(false);
+        this.backoffs = new ConcurrentHashMap<>();
+    }
+
+    /*
+    * Start a ping round, returns false if a round is still running
+    * or the scheduler has been shut down.
+    */
+    boolean pingContacts(List<Contact> contacts, byte[] ownPublicKey, byte[] ownSecretKey) {
+        if (!this.running.compareAndSet(false, true)) {
+            log("ping round already running");
+            return false;
+        }
+
+        this.roundStart = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(contacts.size());
+        if (contacts.isEmpty()) {
+            finishRound();
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Contact contact : contacts) {
+            Backoff backoff = this.backoffs.get(key(contact.getPublicKey()));
+            if (backoff != null && backoff.nextPing > now) {
+                log("skip ping to " + contact.getName() + " (offline)");
+                if (remaining.decrementAndGet() == 0) {
+                    finishRound();
+                }
+                continue;
+            }
+
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        Contact.State state = ping(contact, ownPublicKey, ownSecretKey);
+                        if (state != null) {
+                            updateBackoff(contact.getPublicKey(), state);
+                            this.binder.updateContactState(contact.getPublicKey(), state);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        // otherwise the round never ends
+                        if (remaining.decrementAndGet() == 0) {
+                            finishRound();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down
+                log("ping scheduler stopped");
+                this.running.set(false);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // contact showed up, ping it again on the next round
+    void resetBackoff(byte[] publicKey) {
+        this.backoffs.remove(key(publicKey));
+    }
+
+    // contact was offline recently and is not pinged yet
+    boolean isBackedOff(byte[] publicKey) {
+        Backoff backoff = this.backoffs.get(key(publicKey));
+        return backoff != null && backoff.nextPing > System.currentTimeMillis();
+    }
+
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private void finishRound() {
+        Metrics.histogram("ping round").recordSince(this.roundStart);
+        this.running.set(false);
+        log("send refresh_contact_list");
+        // states of several contacts
+        this.binder.sendChange("refresh_contact_list", MainService.CHANGE_CONTACT_STATE, null);
+    }
+
+    private void updateBackoff(byte[] publicKey, Contact.State state) {
+        String key = key(publicKey);
+        if (state == Contact.State.ONLINE) {
+            this.backoffs.remove(key);
+            return;
+        }
+
+        Backoff backoff = this.backoffs.get(key);
+        if (backoff == null) {
+            backoff = new Backoff();
+            this.backoffs.put(key, backoff);
+        }
+
+        backoff.failures += 1;
+        long delay = BACKOFF_BASE_MS << Math.min(backoff.failures - 1, 8);
+        backoff.nextPing = System.currentTimeMillis() + Math.min(delay, BACKOFF_MAX_MS);
+    }
+
+    // return the new contact state or null if unchanged
+    private Contact.State ping(Contact contact, byte[] ownPublicKey, byte[] ownSecretKey) {
+        long start = System.nanoTime();
+        try {
+            return pingContact(contact, ownPublicKey, ownSecretKey);
+        } finally {
+            Metrics.histogram("ping").recordSince(start);
+        }
+    }
+
+    private Contact.State pingContact(Contact contact, byte[] ownPublicKey, byte[] ownSecretKey) {
+        if (this.binder.getSettings().getPersistentConnections()) {
+            ControlChannel channel = this.binder.getControlChannels().get(contact, ownPublicKey, ownSecretKey);
+            try {
+                if (channel.open()) {
+                    log("send ping to " + contact.getName() + " (control channel)");
+                    Message response = channel.request(Message.ping());
+                    if (response != null && response.is(Message.Action.PONG)) {
+                        log("got pong");
+                        return Contact.State.ONLINE;
+                    }
+                    channel.close();
+                }
+                // not supported by contact, use a new connection
+            } catch (Exception e) {
+                // contact not reachable
+                return Contact.State.OFFLINE;
+            }
+        }
+
+        return this.binder.getSignaling().ping(contact);
+    }
+
+    private static String key(byte[] publicKey) {
+        return Utils.byteArrayToHexString(publicKey);
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
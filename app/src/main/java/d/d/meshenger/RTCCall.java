@@ -11,7 +11,6 @@ import android.util.TypedValue;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.libsodium.jni.Sodium;
 import org.webrtc.AudioTrack;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.CameraEnumerator;
@@ -28,11 +27,9 @@ import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoTrack;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -64,8 +61,6 @@ public class RTCCall implements DataChannel.Observer {
 
     private Context context;
     private Contact contact;
-    private byte[] ownPublicKey;
-    private byte[] ownSecretKey;
     private List<PeerConnection.IceServer> iceServers;
     private OnStateChangeListener listener;
     private MainService.MainBinder binder;
@@ -73,6 +68,12 @@ public class RTCCall implements DataChannel.Observer {
     public CallState state;
     public Socket commSocket;
 
+    // phases of the call setup
+    private final Tracer.Trace trace;
+    // started by the SDP observers, ended by the peer connection observer
+    private volatile Tracer.Span iceGathering;
+    private Tracer.Span waitForUser;
+
     static public RTCCall startCall(Context context, MainService.MainBinder binder, Contact contact, OnStateChangeListener listener) {
         return new RTCCall(context, binder, contact, listener);
     }
@@ -84,9 +85,9 @@ public class RTCCall implements DataChannel.Observer {
         this.commSocket = commSocket;
         this.listener = null;
         this.binder = binder;
-        this.ownPublicKey = binder.getSettings().getPublicKey();
-        this.ownSecretKey = binder.getSettings().getSecretKey();
         this.offer = offer;
+        this.trace = Tracer.start("incoming call");
+        this.trace.event("ringing");
 
         // usually empty
         this.iceServers = new ArrayList<>();
@@ -94,7 +95,11 @@ public class RTCCall implements DataChannel.Observer {
             this.iceServers.add(PeerConnection.IceServer.builder(server).createIceServer());
         }
 
+        Tracer.Span span = this.trace.begin("initRTC");
         initRTC(context);
+        span.end();
+
+        this.waitForUser = this.trace.begin("wait for user");
     }
 
     // called for outgoing calls
@@ -104,8 +109,7 @@ public class RTCCall implements DataChannel.Observer {
         this.commSocket = null;
         this.listener = listener;
         this.binder = binder;
-        this.ownPublicKey = binder.getSettings().getPublicKey();
-        this.ownSecretKey = binder.getSettings().getSecretKey();
+        this.trace = Tracer.start("outgoing call");
 
         log("RTCCall created");
 
@@ -115,7 +119,9 @@ public class RTCCall implements DataChannel.Observer {
             this.iceServers.add(PeerConnection.IceServer.builder(server).createIceServer());
         }
 
+        Tracer.Span span = this.trace.begin("initRTC");
         initRTC(context);
+        span.end();
 
         if (AppCompatDelegate.getDefaultNightMode() == AppCompatDelegate.MODE_NIGHT_YES) {
             context.setTheme(R.style.AppTheme_Dark);
@@ -124,105 +130,50 @@ public class RTCCall implements DataChannel.Observer {
         }
 
         new Thread(() -> {
+            long start = System.nanoTime();
+            Tracer.Span createSpan = this.trace.begin("createPeerConnection");
             connection = factory.createPeerConnection(Collections.emptyList(), new DefaultObserver() {
                 @Override
                 public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
                     super.onIceGatheringChange(iceGatheringState);
-                    byte[] otherPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
-
                     if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
                         log("transferring offer...");
+                        // peer connection, offer and ICE candidates
+                        Metrics.histogram("call offer").recordSince(start);
+                        endIceGathering();
                         try {
-                            commSocket = contact.createSocket();
-                            if (commSocket == null) {
-                                log("cannot establish connection");
-                                reportStateChange(CallState.ERROR);
-                                //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
-                                return;
-                            }
-
-                            InetSocketAddress remote_address = (InetSocketAddress) commSocket.getRemoteSocketAddress();
-                            log("outgoing call from remote address: " + remote_address);
-
-                            // remember latest working address
-                            contact.setLastWorkingAddress(
-                                    new InetSocketAddress(remote_address.getAddress(), MainService.serverPort)
-                            );
-
-                            log("connect..");
-
-                            PacketReader pr = new PacketReader(commSocket);
-                            reportStateChange(CallState.CONNECTING);
-
-                            {
-                                JSONObject obj = new JSONObject();
-                                obj.put("action", "call");
-                                obj.put("offer", connection.getLocalDescription().description);
-                                byte[] encrypted = Crypto.encryptMessage(obj.toString(), contact.getPublicKey(), ownPublicKey, ownSecretKey);
-                                if (encrypted == null) {
-                                    log("encryption failed");
-                                    closeCommSocket();
-                                    reportStateChange(CallState.ERROR);
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
-                                    return;
+                            Message message = RTCCall.this.binder.getSignaling().call(contact, connection.getLocalDescription().description, new Signaling.CallListener() {
+                                @Override
+                                public void onConnecting(Socket socket) {
+                                    commSocket = socket;
+                                    reportStateChange(CallState.CONNECTING);
                                 }
-                                PacketWriter pw = new PacketWriter(commSocket);
-                                pw.writeMessage(encrypted);
-                            }
 
-                            {
-                                byte[] response = pr.readMessage();
-                                String decrypted = Crypto.decryptMessage(response, otherPublicKey, ownPublicKey, ownSecretKey);
-                                if (decrypted == null || !Arrays.equals(contact.getPublicKey(), otherPublicKey)) {
-                                    log("decryption failed");
-                                    closeCommSocket();
-                                    reportStateChange(CallState.ERROR);
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
-                                    return;
-                                }
-                                JSONObject obj = new JSONObject(decrypted);
-                                if (!obj.optString("action", "").equals("ringing")) {
-                                    closeCommSocket();
-                                    reportStateChange(CallState.ERROR);
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
-                                    return;
-                                }
-                                log("ringing...");
-                                reportStateChange(CallState.RINGING);
-                            }
-
-                            {
-                                byte[] response = pr.readMessage();
-                                String decrypted = Crypto.decryptMessage(response, otherPublicKey, ownPublicKey, ownSecretKey);
-                                if (decrypted == null || !Arrays.equals(contact.getPublicKey(), otherPublicKey)) {
-                                    closeCommSocket();
-                                    reportStateChange(CallState.ERROR);
-                                    return;
+                                @Override
+                                public void onRinging() {
+                                    reportStateChange(CallState.RINGING);
                                 }
+                            }, trace);
 
-                                JSONObject obj = new JSONObject(decrypted);
-
-                                String action = obj.getString("action");
-                                if (action.equals("connected")) {
-                                    reportStateChange(CallState.CONNECTED);
-                                    handleAnswer(obj.getString("answer"));
-                                    // contact accepted receiving call
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ACCEPTED);
-                                } else if (action.equals("dismissed")) {
-                                    closeCommSocket();
-                                    reportStateChange(CallState.DISMISSED);
-                                    // contact declined receiving call
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_DECLINED);
-                                } else {
-                                    log("unknown action reply: " + action);
-                                    closeCommSocket();
-                                    reportStateChange(CallState.ERROR);
-                                    //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
-                                }
+                            if (message.is(Message.Action.CONNECTED)) {
+                                Metrics.histogram("call setup").recordSince(start);
+                                trace.event("connected");
+                                reportStateChange(CallState.CONNECTED);
+                                handleAnswer(message.sdp);
+                                // contact accepted receiving call
+                                //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ACCEPTED);
+                            } else {
+                                closeCommSocket();
+                                trace.finish("dismissed");
+                                reportStateChange(CallState.DISMISSED);
+                                // contact declined receiving call
+                                //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_DECLINED);
                             }
                         } catch (Exception e) {
                             closeCommSocket();
                             e.printStackTrace();
+                            Metrics.counter("call failed").increment();
+                            trace.finish("error");
                             reportStateChange(CallState.ERROR);
                             //RTCCall.this.binder.addCallEvent(contact, CallEvent.Type.OUTGOING_ERROR);
                         }
@@ -255,12 +206,24 @@ public class RTCCall implements DataChannel.Observer {
             connection.addStream(createStream());
             this.dataChannel = connection.createDataChannel("data", new DataChannel.Init());
             this.dataChannel.registerObserver(this);
+            createSpan.end();
+
+            Tracer.Span offerSpan = this.trace.begin("createOffer");
             connection.createOffer(new DefaultSdpObserver() {
                 @Override
                 public void onCreateSuccess(SessionDescription sessionDescription) {
                     super.onCreateSuccess(sessionDescription);
+                    offerSpan.end();
+                    iceGathering = trace.begin("ice gathering");
                     connection.setLocalDescription(new DefaultSdpObserver(), sessionDescription);
                 }
+
+                @Override
+                public void onCreateFailure(String s) {
+                    super.onCreateFailure(s);
+                    offerSpan.end();
+                    trace.finish("offer failed");
+                }
             }, constraints);
         }).start();
     }
@@ -454,21 +417,39 @@ public class RTCCall implements DataChannel.Observer {
     }
 
     private void handleAnswer(String remoteDesc) {
+        Tracer.Span span = this.trace.begin("handleAnswer");
         connection.setRemoteDescription(new DefaultSdpObserver() {
             @Override
             public void onSetSuccess() {
                 super.onSetSuccess();
                 log("onSetSuccess");
+                span.end();
+                trace.finish("connected");
             }
 
             @Override
             public void onSetFailure(String s) {
                 super.onSetFailure(s);
                 log("onSetFailure: " + s);
+                span.end();
+                trace.finish("answer failed");
             }
         }, new SessionDescription(SessionDescription.Type.ANSWER, remoteDesc));
     }
 
+    private void endIceGathering() {
+        Tracer.Span span = this.iceGathering;
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    private void endWaitForUser() {
+        if (this.waitForUser != null) {
+            this.waitForUser.end();
+        }
+    }
+
     private void reportStateChange(CallState state) {
         this.state = state;
         if (this.listener != null) {
@@ -478,28 +459,29 @@ public class RTCCall implements DataChannel.Observer {
 
     public void accept(OnStateChangeListener listener) {
         this.listener = listener;
+        endWaitForUser();
         new Thread(() -> {
+            long start = System.nanoTime();
+            Tracer.Span createSpan = this.trace.begin("createPeerConnection");
             connection = factory.createPeerConnection(this.iceServers, new DefaultObserver() {
                 @Override
                 public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
                     super.onIceGatheringChange(iceGatheringState);
                     if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
                         log("onIceGatheringChange");
+                        // peer connection, answer and ICE candidates
+                        Metrics.histogram("call accept").recordSince(start);
+                        endIceGathering();
                         try {
-                            PacketWriter pw = new PacketWriter(commSocket);
-                            JSONObject obj = new JSONObject();
-                            obj.put("action", "connected");
-                            obj.put("answer", connection.getLocalDescription().description);
-                            byte[] encrypted = Crypto.encryptMessage(obj.toString(), contact.getPublicKey(), ownPublicKey, ownSecretKey);
-                            if (encrypted != null) {
-                                pw.writeMessage(encrypted);
-                                reportStateChange(CallState.CONNECTED);
-                            } else {
-                                reportStateChange(CallState.ERROR);
-                            }
+                            Message message = Message.connected(connection.getLocalDescription().description);
+                            binder.getSignaling().send(commSocket, contact, message, trace);
+                            trace.finish("connected");
+                            reportStateChange(CallState.CONNECTED);
                             //new Thread(new SpeakerRunnable(commSocket)).start();
                         } catch (Exception e) {
                             e.printStackTrace();
+                            Metrics.counter("call failed").increment();
+                            trace.finish("error");
                             reportStateChange(CallState.ERROR);
                         }
                     }
@@ -531,18 +513,24 @@ public class RTCCall implements DataChannel.Observer {
             });
             connection.addStream(createStream());
             //this.dataChannel = connection.createDataChannel("data", new DataChannel.Init());
+            createSpan.end();
 
             log("setting remote description");
+            Tracer.Span remoteSpan = this.trace.begin("setRemoteDescription");
             connection.setRemoteDescription(new DefaultSdpObserver() {
                 @Override
                 public void onSetSuccess() {
                     super.onSetSuccess();
+                    remoteSpan.end();
                     log("creating answer...");
+                    Tracer.Span answerSpan = trace.begin("createAnswer");
                     connection.createAnswer(new DefaultSdpObserver() {
                         @Override
                         public void onCreateSuccess(SessionDescription sessionDescription) {
                             log("onCreateSuccess");
                             super.onCreateSuccess(sessionDescription);
+                            answerSpan.end();
+                            iceGathering = trace.begin("ice gathering");
                             connection.setLocalDescription(new DefaultSdpObserver(), sessionDescription);
                         }
 
@@ -550,6 +538,8 @@ public class RTCCall implements DataChannel.Observer {
                         public void onCreateFailure(String s) {
                             super.onCreateFailure(s);
                             log("onCreateFailure: " + s);
+                            answerSpan.end();
+                            trace.finish("answer failed");
                         }
                     }, constraints);
                 }
@@ -559,12 +549,12 @@ public class RTCCall implements DataChannel.Observer {
 
     public void decline() {
         new Thread(() -> {
+            endWaitForUser();
+            this.trace.finish("declined");
             try {
                 log("declining...");
                 if (this.commSocket != null) {
-                    PacketWriter pw = new PacketWriter(commSocket);
-                    byte[] encrypted = Crypto.encryptMessage("{\"action\":\"dismissed\"}", this.contact.getPublicKey(), this.ownPublicKey, this.ownSecretKey);
-                    pw.writeMessage(encrypted);
+                    this.binder.getSignaling().send(this.commSocket, this.contact, Message.dismissed());
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -592,9 +582,7 @@ public class RTCCall implements DataChannel.Observer {
         new Thread(() -> {
             try {
                 if (this.commSocket != null) {
-                    PacketWriter pw = new PacketWriter(this.commSocket);
-                    byte[] encrypted = Crypto.encryptMessage("{\"action\":\"dismissed\"}", this.contact.getPublicKey(), this.ownPublicKey, this.ownSecretKey);
-                    pw.writeMessage(encrypted);
+                    this.binder.getSignaling().send(this.commSocket, this.contact, Message.dismissed());
                 }
 
                 closeCommSocket();
@@ -15,6 +15,8 @@ public class Settings {
     private boolean nightMode;
     private boolean blockUnknown;
     private boolean developmentMode;
+    // keep connections to online contacts open
+    private boolean persistentConnections;
     private List<String> addresses;
     // ICE (Interactive Connectivity Establishment) servers implement STUN and TURN
     private List<String> iceServers;
@@ -26,6 +28,7 @@ public class Settings {
         this.nightMode = false;
         this.blockUnknown = false;
         this.developmentMode = false;
+        this.persistentConnections = false;
         this.addresses = new ArrayList<>();
         this.iceServers = new ArrayList<>();
     }
@@ -78,6 +81,14 @@ public class Settings {
         this.developmentMode = developmentMode;
     }
 
+    public boolean getPersistentConnections() {
+        return persistentConnections;
+    }
+
+    public void setPersistentConnections(boolean persistentConnections) {
+        this.persistentConnections = persistentConnections;
+    }
+
     public List<String> getAddresses() {
         return this.addresses;
     }
@@ -111,6 +122,7 @@ public class Settings {
         s.nightMode = obj.getBoolean("night_mode");
         s.blockUnknown = obj.getBoolean("block_unknown");
         s.developmentMode = obj.getBoolean("development_mode");
+        s.persistentConnections = obj.getBoolean("persistent_connections");
 
         JSONArray addresses = obj.getJSONArray("addresses");
         for (int i = 0; i < addresses.length(); i += 1) {
@@ -133,6 +145,7 @@ public class Settings {
         obj.put("night_mode", s.nightMode);
         obj.put("block_unknown", s.blockUnknown);
         obj.put("development_mode", s.developmentMode);
+        obj.put("persistent_connections", s.persistentConnections);
 
         JSONArray addresses = new JSONArray();
         for (int i = 0; i < s.addresses.size(); i += 1) {
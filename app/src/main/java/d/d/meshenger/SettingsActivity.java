@@ -93,6 +93,11 @@ public class SettingsActivity extends MeshengerActivity implements ServiceConnec
             showChangeIceServersDialog();
         });
 
+        findViewById(R.id.showMetricsLayout).setOnClickListener((View view) -> {
+            Intent intent = new Intent(this, MetricsActivity.class);
+            startActivity(intent);
+        });
+
         String username = this.binder.getSettings().getUsername();
         ((TextView) findViewById(R.id.nameTv)).setText(
             username.length() == 0 ? getResources().getString(R.string.none) : username
@@ -122,6 +127,18 @@ public class SettingsActivity extends MeshengerActivity implements ServiceConnec
             this.binder.saveDatabase();
         });
 
+        boolean persistentConnections = this.binder.getSettings().getPersistentConnections();
+        CheckBox persistentConnectionsCB = findViewById(R.id.checkBoxPersistentConnections);
+        persistentConnectionsCB.setChecked(persistentConnections);
+        persistentConnectionsCB.setOnCheckedChangeListener((compoundButton, isChecked) -> {
+            // save value
+            this.binder.getSettings().setPersistentConnections(isChecked);
+            this.binder.saveDatabase();
+            if (!isChecked) {
+                this.binder.getControlChannels().shutdown();
+            }
+        });
+
         boolean nightMode = this.binder.getSettings().getNightMode();
         CheckBox nightModeCB = findViewById(R.id.checkBoxNightMode);
         nightModeCB.setChecked(nightMode);
@@ -164,10 +181,12 @@ public class SettingsActivity extends MeshengerActivity implements ServiceConnec
             findViewById(R.id.changeIgnoreBatteryOptimizations).setVisibility(View.VISIBLE);
             findViewById(R.id.changeDevelopmentModeLayout).setVisibility(View.VISIBLE);
             findViewById(R.id.changeIceServersLayout).setVisibility(View.VISIBLE);
+            findViewById(R.id.showMetricsLayout).setVisibility(View.VISIBLE);
         } else {
             findViewById(R.id.changeIgnoreBatteryOptimizations).setVisibility(View.GONE);
             findViewById(R.id.changeDevelopmentModeLayout).setVisibility(View.GONE);
             findViewById(R.id.changeIceServersLayout).setVisibility(View.GONE);
+            findViewById(R.id.showMetricsLayout).setVisibility(View.GONE);
         }
     }
 
@@ -0,0 +1,485 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.Sodium;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/*
+* Signaling protocol between contacts, without Android dependencies.
+*
+* Incoming messages are handled as ConnectionServer.Handler, outgoing
+* pings and calls use a new connection from the transport. Everything
+* the protocol wants the app to know is reported to the event sink.
+* This way the protocol can also run with many simulated peers in a
+* single JVM.
+*/
+class Signaling implements ConnectionServer.Handler {
+
+    // how connections to contacts are made
+    interface Transport {
+        // returns null if the contact cannot be reached
+        Socket connect(Contact contact);
+    }
+
+    // what the app needs to know
+    interface Events {
+        // state of a contact has been learned from a message
+        void onContactState(byte[] publicKey, Contact.State state);
+
+        // ringing has been sent, the socket now belongs to the call
+        void onIncomingCall(Contact contact, Socket socket, String offer) throws Exception;
+
+        // a blocked or unknown contact has connected
+        void onBlocked(byte[] publicKey);
+
+        // an incoming connection has been closed
+        void onConnectionClosed();
+
+        // an incoming connection has failed
+        void onConnectionError(Exception e);
+    }
+
+    // progress of an outgoing call
+    interface CallListener {
+        // the socket can be used to hang up
+        void onConnecting(Socket socket);
+
+        void onRinging();
+    }
+
+    static final Transport DEFAULT_TRANSPORT = Contact::createSocket;
+
+    // received messages per action
+    private static final Metrics.Counter[] messageCounters = new Metrics.Counter[Message.Action.values().length];
+    private static final Metrics.Counter decryptFailures = Metrics.counter("message decrypt failed");
+    private static final Metrics.Counter invalidMessages = Metrics.counter("message invalid");
+
+    static {
+        for (Message.Action action : Message.Action.values()) {
+            messageCounters[action.ordinal()] = Metrics.counter("message " + action.name().toLowerCase());
+        }
+    }
+
+    private final Events events;
+    private final Transport transport;
+    private final int serverPort;
+    // may be replaced, e.g. after a backup was imported
+    private volatile Database db;
+    // crypto memory of each connection worker
+    private final ThreadLocal<Crypto.Scratch> scratch = new ThreadLocal<Crypto.Scratch>() {
+        @Override
+        protected Crypto.Scratch initialValue() {
+            return new Crypto.Scratch();
+        }
+    };
+
+    Signaling(Events events, Transport transport, int serverPort) {
+        this.events = events;
+        this.transport = transport;
+        this.serverPort = serverPort;
+        this.db = null;
+    }
+
+    void setDatabase(Database db) {
+        this.db = db;
+    }
+
+    @Override
+    public boolean onMessage(ConnectionServer.Connection connection, byte[] request) throws Exception {
+        Database db = this.db;
+
+        // just a precaution
+        if (db == null) {
+            return false;
+        }
+
+        if (connection.clientPublicKey == null) {
+            connection.clientPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        }
+
+        byte[] clientPublicKey = connection.clientPublicKey;
+        byte[] ownSecretKey = db.settings.getSecretKey();
+        byte[] ownPublicKey = db.settings.getPublicKey();
+        InetSocketAddress remote_address = connection.remoteAddress;
+
+        // packets of a control channel are prefixed with a stream id
+        ByteBuffer packet = ByteBuffer.wrap(request);
+        int streamId = -1;
+        if (connection.multiplexed) {
+            if (request.length < 4) {
+                return false;
+            }
+            streamId = packet.getInt();
+        }
+
+        Crypto.Scratch scratch = this.scratch.get();
+        ByteBuffer content = scratch.getOutput(packet.remaining());
+        int length;
+        if (connection.session != null) {
+            // sender is known from the session setup
+            length = connection.session.decrypt(packet, content, scratch);
+        } else {
+            length = Crypto.decryptMessage(packet, content, clientPublicKey, ownPublicKey, ownSecretKey, scratch);
+        }
+        if (length < 0) {
+            log("decryption failed");
+            decryptFailures.increment();
+            return false;
+        }
+
+        Message message = Message.decode(content.array(), 0, length);
+        Arrays.fill(content.array(), 0, length, (byte) 0);
+        if (message == null) {
+            log("invalid message");
+            invalidMessages.increment();
+            return false;
+        }
+
+        if (connection.contact == null) {
+            Contact contact = db.contacts.get(clientPublicKey);
+
+            if (contact == null && db.settings.getBlockUnknown()) {
+                log("block unknown contact => decline");
+                this.events.onBlocked(clientPublicKey);
+                return false;
+            }
+
+            if (contact != null && contact.getBlocked()) {
+                log("blocked contact => decline");
+                this.events.onBlocked(clientPublicKey);
+                return false;
+            }
+
+            if (contact == null) {
+                // unknown caller
+                contact = new Contact("", clientPublicKey.clone(), new ArrayList<>());
+            }
+
+            connection.contact = contact;
+        }
+
+        Contact contact = connection.contact;
+
+        // suspicious change of identity during connection...
+        if (!Arrays.equals(contact.getPublicKey(), clientPublicKey)) {
+            log("suspicious change of identity");
+            return true;
+        }
+
+        // remember last good address (the outgoing port is random and not the server port)
+        InetSocketAddress working_address = new InetSocketAddress(remote_address.getAddress(), this.serverPort);
+        contact.setLastWorkingAddress(working_address);
+        Dialer.recordSuccess(working_address);
+
+        // answer in the format the contact understands
+        Message.setVersion(clientPublicKey, message.version);
+
+        if (message.action == null) {
+            log("unknown action: " + message);
+            return true;
+        }
+
+        messageCounters[message.action.ordinal()].increment();
+
+        switch (message.action) {
+            case CALL: {
+                if (connection.multiplexed) {
+                    log("call over control channel not supported");
+                    break;
+                }
+
+                // someone calls us
+                log("got call...");
+                String offer = message.sdp;
+
+                // the call takes over the connection
+                connection.detach((Socket client) -> {
+                    // respond that we accept the call
+                    send(client, contact, Message.ringing());
+                    this.events.onIncomingCall(contact, client, offer);
+                });
+                return true;
+            }
+            case PING: {
+                log("got ping...");
+                // someone wants to know if we are online
+                this.events.onContactState(contact.getPublicKey(), Contact.State.ONLINE);
+                reply(connection, streamId, Message.pong());
+                break;
+            }
+            case CONTROL_OPEN: {
+                // keep connection open for more messages
+                log("got control_open...");
+                if (connection.multiplexed) {
+                    break;
+                }
+
+                // set up session key if the contact sent one
+                Crypto.Session session = new Crypto.Session();
+                Message ack;
+                if (session.establish(message.sessionKey, false)) {
+                    ack = Message.controlAck(session.getPublicKey());
+                } else {
+                    ack = Message.controlAck(null);
+                    session.destroy();
+                    session = null;
+                }
+
+                reply(connection, streamId, ack);
+                connection.multiplexed = true;
+                connection.session = session;
+                break;
+            }
+            case STATUS_CHANGE: {
+                if (message.status.equals("offline")) {
+                    this.events.onContactState(contact.getPublicKey(), Contact.State.OFFLINE);
+                } else {
+                    log("Received unknown status_change: " + message.status);
+                }
+                break;
+            }
+            default: {
+                log("unexpected action: " + message);
+            }
+        }
+
+        return true;
+    }
+
+    private void reply(ConnectionServer.Connection connection, int streamId, Message message) throws IOException {
+        Database db = this.db;
+        ByteBuffer content = ByteBuffer.wrap(message.encodeFor(connection.contact.getPublicKey()));
+        Crypto.Scratch scratch = this.scratch.get();
+        ByteBuffer packet = scratch.getOutput(4 + Crypto.getEncryptedMessageSize(content.remaining()));
+
+        if (streamId >= 0) {
+            packet.putInt(streamId);
+        }
+
+        int written;
+        if (connection.session != null) {
+            written = connection.session.encrypt(content, packet, scratch);
+        } else {
+            written = Crypto.encryptMessage(content, packet, connection.contact.getPublicKey(), db.settings.getPublicKey(), db.settings.getSecretKey(), scratch);
+        }
+
+        if (written < 0) {
+            throw new IOException("encryption failed");
+        }
+
+        packet.flip();
+        connection.send(packet);
+    }
+
+    @Override
+    public void onClose(ConnectionServer.Connection connection) {
+        log("call disconnected");
+        destroyKeys(connection);
+        this.events.onConnectionClosed();
+    }
+
+    @Override
+    public void onError(ConnectionServer.Connection connection, Exception e) {
+        log("client disconnected (exception)");
+        destroyKeys(connection);
+        this.events.onConnectionError(e);
+    }
+
+    private static void destroyKeys(ConnectionServer.Connection connection) {
+        // zero out keys
+        if (connection.clientPublicKey != null) {
+            Arrays.fill(connection.clientPublicKey, (byte) 0);
+        }
+
+        if (connection.session != null) {
+            connection.session.destroy();
+        }
+    }
+
+    /*
+    * Ping over a new connection.
+    * Return the new contact state or null if unknown.
+    */
+    Contact.State ping(Contact contact) {
+        Socket socket = null;
+
+        try {
+            socket = this.transport.connect(contact);
+            if (socket == null) {
+                return Contact.State.OFFLINE;
+            }
+
+            PacketWriter pw = new PacketWriter(socket);
+            PacketReader pr = new PacketReader(socket);
+
+            log("send ping to " + contact.getName());
+            pw.writeMessage(encrypt(contact, Message.ping()));
+
+            Message response = decrypt(contact, pr.readMessage());
+            closeQuietly(socket);
+
+            if (response != null && response.is(Message.Action.PONG)) {
+                log("got pong");
+                return Contact.State.ONLINE;
+            }
+        } catch (Exception e) {
+            closeQuietly(socket);
+            e.printStackTrace();
+            return Contact.State.OFFLINE;
+        }
+
+        return null;
+    }
+
+    /*
+    * Signal an outgoing call. Returns the connected or dismissed
+    * message of the contact and throws on any other outcome.
+    * The phases are added to the trace.
+    */
+    Message call(Contact contact, String offer, CallListener listener, Tracer.Trace trace) throws IOException {
+        long start = System.nanoTime();
+        Tracer.Span span = trace.begin("connect");
+        Socket socket = this.transport.connect(contact);
+        span.end();
+        if (socket == null) {
+            throw new IOException("cannot establish connection");
+        }
+        Metrics.histogram("call connect").recordSince(start);
+
+        InetSocketAddress remote_address = (InetSocketAddress) socket.getRemoteSocketAddress();
+        log("outgoing call from remote address: " + remote_address);
+
+        // remember latest working address
+        contact.setLastWorkingAddress(
+            new InetSocketAddress(remote_address.getAddress(), this.serverPort)
+        );
+
+        log("connect..");
+        PacketReader pr = new PacketReader(socket);
+        listener.onConnecting(socket);
+
+        start = System.nanoTime();
+        send(socket, contact, Message.call(offer), trace);
+
+        Message ringing = receive(pr, contact, "ringing", trace);
+        if (ringing == null) {
+            throw new IOException("decryption failed");
+        }
+
+        if (!ringing.is(Message.Action.RINGING)) {
+            throw new IOException("unexpected response: " + ringing);
+        }
+
+        log("ringing...");
+        Metrics.histogram("call ringing").recordSince(start);
+        trace.event("ringing");
+        start = System.nanoTime();
+        listener.onRinging();
+
+        Message response = receive(pr, contact, "answer", trace);
+        if (response == null) {
+            throw new IOException("decryption failed");
+        }
+
+        if (!response.is(Message.Action.CONNECTED) && !response.is(Message.Action.DISMISSED)) {
+            throw new IOException("unknown action reply: " + response);
+        }
+
+        // time the callee took to decide
+        Metrics.histogram("call answer").recordSince(start);
+        return response;
+    }
+
+    // send a single message over a new connection
+    void send(Contact contact, Message message) throws IOException {
+        Socket socket = this.transport.connect(contact);
+        if (socket == null) {
+            throw new IOException("contact not reachable");
+        }
+
+        try {
+            send(socket, contact, message);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    // send a message over the connection of a call
+    void send(Socket socket, Contact contact, Message message) throws IOException {
+        send(socket, contact, message, Tracer.DISABLED);
+    }
+
+    // encrypting and writing are traced separately
+    void send(Socket socket, Contact contact, Message message, Tracer.Trace trace) throws IOException {
+        PacketWriter pw = new PacketWriter(socket);
+        Tracer.Span span = trace.begin("encrypt " + message.action.name);
+        byte[] data = encrypt(contact, message);
+        span.end();
+        span = trace.begin("send " + message.action.name);
+        pw.writeMessage(data);
+        span.end();
+    }
+
+    // wait for the next message of a call, null if invalid
+    private Message receive(PacketReader pr, Contact contact, String name, Tracer.Trace trace) throws IOException {
+        Tracer.Span span = trace.begin("wait for " + name);
+        byte[] data = pr.readMessage();
+        span.end();
+        span = trace.begin("decrypt " + name);
+        Message message = decrypt(contact, data);
+        span.end();
+        return message;
+    }
+
+    // encrypt a message for the contact with the own keys
+    byte[] encrypt(Contact contact, Message message) throws IOException {
+        Database db = this.db;
+        byte[] publicKey = contact.getPublicKey();
+        byte[] encrypted = Crypto.encryptMessage(message.encodeFor(publicKey), publicKey, db.settings.getPublicKey(), db.settings.getSecretKey());
+        if (encrypted == null) {
+            throw new IOException("encryption failed");
+        }
+        return encrypted;
+    }
+
+    // decrypt message and check sender, null if invalid
+    Message decrypt(Contact contact, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+
+        Database db = this.db;
+        byte[] otherPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] decrypted = Crypto.decryptData(data, otherPublicKey, db.settings.getPublicKey(), db.settings.getSecretKey());
+        if (decrypted == null || !Arrays.equals(contact.getPublicKey(), otherPublicKey)) {
+            log("decryption failed");
+            return null;
+        }
+
+        Message message = Message.decode(decrypted);
+        if (message != null) {
+            Message.setVersion(otherPublicKey, message.version);
+        }
+        return message;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void log(String s) {
+        Log.d(this, s);
+    }
+}
@@ -0,0 +1,277 @@
+package d.d.meshenger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+* Span traces of the call setup.
+*
+* A trace holds the timed phases (spans) of one call on one side.
+* Timestamps are from System.nanoTime() and relative to the start
+* of the process, so spans of different threads can be compared.
+* The latest traces are kept in a ring buffer and can be exported
+* as JSON or in the Chrome trace format (chrome://tracing, Perfetto).
+*/
+class Tracer {
+    // traces kept in the ring buffer
+    static final int MAX_TRACES = 32;
+    // spans and events per trace, more are dropped
+    static final int MAX_SPANS = 64;
+
+    // does not record anything
+    static final Trace DISABLED = new Trace(0, "disabled");
+
+    private static final long origin = System.nanoTime();
+    private static final Trace[] traces = new Trace[MAX_TRACES];
+    private static int nextIndex = 0;
+    private static int nextId = 1;
+
+    static final class Span {
+        final String name;
+        // nanoseconds since origin
+        final long start;
+        final long threadId;
+        // -1 while running, equal to start for events
+        private volatile long end;
+
+        private Span(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.threadId = Thread.currentThread().getId();
+        }
+
+        void end() {
+            if (this.end < 0) {
+                this.end = now();
+            }
+        }
+
+        boolean isEvent() {
+            return this.end == this.start;
+        }
+    }
+
+    static final class Trace {
+        final int id;
+        final String name;
+        final long start;
+        // for humans, not used for durations
+        final long startTime;
+        private final List<Span> spans = new ArrayList<>();
+        private volatile String outcome;
+        private volatile long end;
+
+        private Trace(int id, String name) {
+            this.id = id;
+            this.name = name;
+            this.start = now();
+            this.startTime = System.currentTimeMillis();
+            this.outcome = null;
+            this.end = -1;
+        }
+
+        // start a phase, call end() on the returned span
+        Span begin(String name) {
+            Span span = new Span(name, now(), -1);
+            add(span);
+            return span;
+        }
+
+        // mark a point in time
+        void event(String name) {
+            long now = now();
+            add(new Span(name, now, now));
+        }
+
+        // the call setup has succeeded or failed
+        void finish(String outcome) {
+            if (this.end < 0) {
+                this.outcome = outcome;
+                this.end = now();
+            }
+        }
+
+        List<Span> getSpans() {
+            synchronized (this.spans) {
+                return new ArrayList<>(this.spans);
+            }
+        }
+
+        private void add(Span span) {
+            if (this == DISABLED) {
+                return;
+            }
+
+            synchronized (this.spans) {
+                if (this.spans.size() < MAX_SPANS) {
+                    this.spans.add(span);
+                }
+            }
+        }
+    }
+
+    // start a new trace, the oldest trace is dropped if the buffer is full
+    static Trace start(String name) {
+        synchronized (traces) {
+            Trace trace = new Trace(nextId, name);
+            nextId += 1;
+            traces[nextIndex] = trace;
+            nextIndex = (nextIndex + 1) % MAX_TRACES;
+            return trace;
+        }
+    }
+
+    // oldest trace first
+    static List<Trace> getTraces() {
+        List<Trace> list = new ArrayList<>();
+        synchronized (traces) {
+            for (int i = 0; i < MAX_TRACES; i += 1) {
+                Trace trace = traces[(nextIndex + i) % MAX_TRACES];
+                if (trace != null) {
+                    list.add(trace);
+                }
+            }
+        }
+        return list;
+    }
+
+    static void clear() {
+        synchronized (traces) {
+            for (int i = 0; i < MAX_TRACES; i += 1) {
+                traces[i] = null;
+            }
+            nextIndex = 0;
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    // human readable, latest trace first, times in milliseconds from the start of the trace
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        List<Trace> list = getTraces();
+        for (int i = list.size() - 1; i >= 0; i -= 1) {
+            Trace trace = list.get(i);
+            sb.append("#").append(trace.id).append(" ").append(trace.name);
+            if (trace.end >= 0) {
+                sb.append(String.format(" %s in %.1fms\n", trace.outcome, (trace.end - trace.start) / 1000000.0));
+            } else {
+                sb.append(" (running)\n");
+            }
+
+            for (Span span : trace.getSpans()) {
+                double offset = (span.start - trace.start) / 1000000.0;
+                if (span.isEvent()) {
+                    sb.append(String.format("  %8.1f  %s\n", offset, span.name));
+                } else if (span.end < 0) {
+                    sb.append(String.format("  %8.1f  %s (running)\n", offset, span.name));
+                } else {
+                    sb.append(String.format("  %8.1f  %s %.1fms\n", offset, span.name, (span.end - span.start) / 1000000.0));
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    // times in microseconds since the start of the process
+    static JSONObject toJSON() throws JSONException {
+        JSONArray tracesArray = new JSONArray();
+        for (Trace trace : getTraces()) {
+            JSONObject traceObj = new JSONObject();
+            traceObj.put("id", trace.id);
+            traceObj.put("name", trace.name);
+            traceObj.put("time", trace.startTime);
+            traceObj.put("start", micros(trace.start));
+            if (trace.end >= 0) {
+                traceObj.put("end", micros(trace.end));
+                traceObj.put("outcome", trace.outcome);
+            }
+
+            JSONArray spansArray = new JSONArray();
+            for (Span span : trace.getSpans()) {
+                JSONObject spanObj = new JSONObject();
+                spanObj.put("name", span.name);
+                spanObj.put("thread", span.threadId);
+                spanObj.put("start", micros(span.start));
+                if (span.end >= 0) {
+                    spanObj.put("end", micros(span.end));
+                }
+                spansArray.put(spanObj);
+            }
+            traceObj.put("spans", spansArray);
+            tracesArray.put(traceObj);
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("traces", tracesArray);
+        return obj;
+    }
+
+    /*
+    * Chrome trace event format. Each trace is shown as a separate
+    * row (tid), running spans end with the export.
+    */
+    static JSONObject toChromeTrace() throws JSONException {
+        long now = now();
+        JSONArray events = new JSONArray();
+        for (Trace trace : getTraces()) {
+            JSONObject meta = new JSONObject();
+            meta.put("name", "thread_name");
+            meta.put("ph", "M");
+            meta.put("pid", 1);
+            meta.put("tid", trace.id);
+            meta.put("args", new JSONObject().put("name", "#" + trace.id + " " + trace.name));
+            events.put(meta);
+
+            long traceEnd = (trace.end >= 0) ? trace.end : now;
+            events.put(chromeEvent(trace.name, trace.id, trace.start, traceEnd)
+                .put("args", new JSONObject().put("outcome", (trace.outcome != null) ? trace.outcome : "running")));
+
+            for (Span span : trace.getSpans()) {
+                if (span.isEvent()) {
+                    JSONObject event = new JSONObject();
+                    event.put("name", span.name);
+                    event.put("ph", "i");
+                    event.put("s", "t");
+                    event.put("ts", micros(span.start));
+                    event.put("pid", 1);
+                    event.put("tid", trace.id);
+                    events.put(event);
+                } else {
+                    long end = (span.end >= 0) ? span.end : now;
+                    events.put(chromeEvent(span.name, trace.id, span.start, end)
+                        .put("args", new JSONObject().put("thread", span.threadId)));
+                }
+            }
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("traceEvents", events);
+        obj.put("displayTimeUnit", "ms");
+        return obj;
+    }
+
+    private static JSONObject chromeEvent(String name, int tid, long start, long end) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("name", name);
+        event.put("ph", "X");
+        event.put("ts", micros(start));
+        event.put("dur", micros(end - start));
+        event.put("pid", 1);
+        event.put("tid", tid);
+        return event;
+    }
+}
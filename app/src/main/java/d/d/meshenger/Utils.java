@@ -5,12 +5,17 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -20,6 +25,8 @@ import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -402,18 +409,91 @@ class Utils {
 
     // write file to external storage
     public static void writeExternalFile(String filepath, byte[] data) throws IOException {
+        writeExternalFile(filepath, data, 0);
+    }
+
+    /*
+    * Replace a file atomically. The data is written to a temporary file
+    * that is synced to disk and then renamed over the file, so there is
+    * always a complete file. The previous versions are kept as copies
+    * <filepath>.1 (newest) to <filepath>.<backups>.
+    */
+    public static void writeExternalFile(String filepath, byte[] data, int backups) throws IOException {
         File file = new File(filepath);
+        File temp = new File(filepath + ".tmp");
+
+        writeSynced(temp, data);
+
+        if (backups > 0 && file.exists()) {
+            for (int i = backups; i > 1; i -= 1) {
+                File older = new File(filepath + "." + (i - 1));
+                if (older.exists() && !older.renameTo(new File(filepath + "." + i))) {
+                    throw new IOException("Failed to rename backup: " + older);
+                }
+            }
+
+            // the live file stays in place
+            copyFile(file, new File(filepath + ".1"));
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename temporary file: " + temp);
+        }
+
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
 
-        if (file.exists() && file.isFile()) {
-            if (!file.delete()) {
-                throw new IOException("Failed to delete existing file: " + filepath);
+    // delete <filepath>.1 to <filepath>.<backups>
+    public static void deleteBackupFiles(String filepath, int backups) {
+        for (int i = 1; i <= backups; i += 1) {
+            File backup = new File(filepath + "." + i);
+            if (backup.exists() && !backup.delete()) {
+                log("Failed to delete backup: " + backup);
             }
         }
+    }
 
-        file.createNewFile();
+    private static void writeSynced(File file, byte[] data) throws IOException {
         FileOutputStream fos = new FileOutputStream(file);
-        fos.write(data);
-        fos.close();
+        try {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+    }
+
+    // copy is complete or missing
+    private static void copyFile(File from, File to) throws IOException {
+        File temp = new File(to.getPath() + ".tmp");
+        writeSynced(temp, readExternalFile(from.getPath()));
+        if (!temp.renameTo(to)) {
+            temp.delete();
+            throw new IOException("Failed to rename temporary file: " + temp);
+        }
+    }
+
+    // make renames durable, not possible before API 21
+    static void syncDirectory(File dir) {
+        if (dir == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            log("Failed to sync directory: " + dir);
+        }
     }
 
     // read file from external storage
@@ -0,0 +1,97 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.NaCl;
+import org.libsodium.jni.Sodium;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Sign and encrypt messages between two key pairs, with the byte array
+* methods and with the buffer methods that reuse a Scratch instance.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({"64", "1024", "8192"})
+    int size;
+
+    private byte[] ownPublicKey;
+    private byte[] ownSecretKey;
+    private byte[] otherPublicKey;
+    private byte[] otherSecretKey;
+
+    private byte[] message;
+    private byte[] encrypted;
+
+    private Crypto.Scratch scratch;
+    private ByteBuffer messageBuffer;
+    private ByteBuffer encryptedBuffer;
+    private ByteBuffer outBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // load the native library
+        NaCl.sodium();
+
+        this.ownPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        this.ownSecretKey = new byte[Sodium.crypto_sign_secretkeybytes()];
+        this.otherPublicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        this.otherSecretKey = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(this.ownPublicKey, this.ownSecretKey);
+        Sodium.crypto_sign_keypair(this.otherPublicKey, this.otherSecretKey);
+
+        this.message = new byte[this.size];
+        new Random(42).nextBytes(this.message);
+        this.encrypted = Crypto.encryptMessage(this.message, this.otherPublicKey, this.ownPublicKey, this.ownSecretKey);
+
+        this.scratch = new Crypto.Scratch();
+        this.messageBuffer = ByteBuffer.wrap(this.message);
+        this.encryptedBuffer = ByteBuffer.wrap(this.encrypted);
+        this.outBuffer = ByteBuffer.allocate(Crypto.getEncryptedMessageSize(this.size));
+    }
+
+    @Benchmark
+    public byte[] encryptMessage() {
+        return Crypto.encryptMessage(this.message, this.otherPublicKey, this.ownPublicKey, this.ownSecretKey);
+    }
+
+    @Benchmark
+    public byte[] decryptMessage() {
+        byte[] otherPublicKeySignOut = new byte[Sodium.crypto_sign_publickeybytes()];
+        return Crypto.decryptData(this.encrypted, otherPublicKeySignOut, this.otherPublicKey, this.otherSecretKey);
+    }
+
+    @Benchmark
+    public int encryptBuffer() {
+        this.messageBuffer.rewind();
+        this.outBuffer.clear();
+        return Crypto.encryptMessage(this.messageBuffer, this.outBuffer, this.otherPublicKey, this.ownPublicKey, this.ownSecretKey, this.scratch);
+    }
+
+    @Benchmark
+    public int decryptBuffer() {
+        byte[] otherPublicKeySignOut = new byte[Sodium.crypto_sign_publickeybytes()];
+        this.encryptedBuffer.rewind();
+        this.outBuffer.clear();
+        return Crypto.decryptMessage(this.encryptedBuffer, this.outBuffer, otherPublicKeySignOut, this.otherPublicKey, this.otherSecretKey, this.scratch);
+    }
+}
@@ -0,0 +1,111 @@
+package d.d.meshenger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.libsodium.jni.NaCl;
+import org.libsodium.jni.Sodium;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Serialize, store and load databases of different sizes.
+* With a password, load() includes the key derivation and
+* store() reuses the key of the database.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int contacts;
+
+    @Param({"", "secret"})
+    String password;
+
+    private Database db;
+    private String json;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, JSONException {
+        // load the native library
+        NaCl.sodium();
+
+        this.db = createDatabase(this.contacts);
+        this.json = Database.toJSON(this.db).toString();
+
+        this.file = File.createTempFile("database", ".bin");
+        Database.store(this.file.getPath(), this.db, this.password);
+
+        // get the derived key, so that store() does not derive a new one each time
+        this.db = Database.load(this.file.getPath(), this.password);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.file.delete();
+    }
+
+    private static Database createDatabase(int contacts) {
+        Random random = new Random(42);
+        Database db = new Database();
+
+        byte[] publicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] secretKey = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(publicKey, secretKey);
+        db.settings.setUsername("benchmark");
+        db.settings.setPublicKey(publicKey);
+        db.settings.setSecretKey(secretKey);
+
+        for (int i = 0; i < contacts; i += 1) {
+            byte[] contactKey = new byte[Sodium.crypto_sign_publickeybytes()];
+            random.nextBytes(contactKey);
+            String mac = String.format("02:00:%02x:%02x:%02x:%02x", (i >> 24) & 0xff, (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+            db.addContact(new Contact("contact " + i, contactKey, new ArrayList<>(Arrays.asList(mac, "192.168.1." + (i % 254 + 1)))));
+        }
+
+        return db;
+    }
+
+    @Benchmark
+    public JSONObject toJSON() throws JSONException {
+        return Database.toJSON(this.db);
+    }
+
+    @Benchmark
+    public Database fromJSON() throws JSONException {
+        return Database.fromJSON(new JSONObject(this.json));
+    }
+
+    @Benchmark
+    public void store() throws IOException, JSONException {
+        Database.store(this.file.getPath(), this.db, this.password);
+    }
+
+    @Benchmark
+    public Database load() throws IOException, JSONException {
+        return Database.load(this.file.getPath(), this.password);
+    }
+}
@@ -0,0 +1,127 @@
+package d.d.meshenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+* Frame a message with PacketWriter and read it back with PacketReader.
+* Writer and reader run in the same thread, so a frame must fit into
+* the socket buffers (loopback) or the pipe buffer (piped streams).
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    // messages per flush for the queued variants
+    private static final int BATCH = 8;
+    private static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
+
+    @Param({"64", "1024", "16384"})
+    int size;
+
+    private byte[] message;
+
+    private ServerSocket server;
+    private Socket client;
+    private Socket accepted;
+    private PacketWriter socketWriter;
+    private PacketReader socketReader;
+
+    private PacketWriter pipeWriter;
+    private PacketReader pipeReader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.message = new byte[this.size];
+        new Random(42).nextBytes(this.message);
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.server = new ServerSocket(0, 1, loopback);
+        this.server.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        this.client = new Socket();
+        this.client.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        this.client.setTcpNoDelay(true);
+        this.client.connect(new InetSocketAddress(loopback, this.server.getLocalPort()));
+        this.accepted = this.server.accept();
+        this.socketWriter = new PacketWriter(this.client);
+        this.socketReader = new PacketReader(this.accepted);
+
+        int pipeSize = BATCH * (4 + this.size);
+        PipedInputStream pis = new PipedInputStream(pipeSize);
+        PipedOutputStream pos = new PipedOutputStream(pis);
+        this.pipeWriter = new PacketWriter(pos);
+        this.pipeReader = new PacketReader(pis);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        this.client.close();
+        this.accepted.close();
+        this.server.close();
+    }
+
+    @Benchmark
+    public byte[] socketRoundTrip() throws IOException {
+        this.socketWriter.writeMessage(this.message);
+        return this.socketReader.readMessage();
+    }
+
+    @Benchmark
+    public int socketQueued() throws IOException {
+        for (int i = 0; i < BATCH; i += 1) {
+            this.socketWriter.queueMessage(this.message);
+        }
+        this.socketWriter.flush();
+
+        int n = 0;
+        for (int i = 0; i < BATCH; i += 1) {
+            n += this.socketReader.readFrame().remaining();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public byte[] pipeRoundTrip() throws IOException {
+        this.pipeWriter.writeMessage(this.message);
+        return this.pipeReader.readMessage();
+    }
+
+    @Benchmark
+    public int pipeQueued() throws IOException {
+        for (int i = 0; i < BATCH; i += 1) {
+            this.pipeWriter.queueMessage(this.message);
+        }
+        this.pipeWriter.flush();
+
+        int n = 0;
+        for (int i = 0; i < BATCH; i += 1) {
+            n += this.pipeReader.readFrame().remaining();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,472 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.NaCl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+* Signaling load generator and soak test.
+*
+* N synthetic identities connect to a listener and send a mix of
+* ping, call and status_change messages, each on a new connection
+* like the app does. Without --target, a simulated peer is started in
+* this JVM and its thread count and heap are reported as well.
+*
+* Example:
+*   --peers 200 --threads 64 --duration 600 --mix ping=80,call=10,status=10
+*/
+class LoadGenerator {
+    enum Operation { PING, CALL, STATUS }
+
+    // latencies of one operation type
+    static final class Stats {
+        final Operation operation;
+        final AtomicLong errors = new AtomicLong();
+        private long[] latencies = new long[1024];
+        private int count = 0;
+
+        Stats(Operation operation) {
+            this.operation = operation;
+        }
+
+        synchronized void record(long micros) {
+            if (this.count == this.latencies.length) {
+                this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+            }
+            this.latencies[this.count] = micros;
+            this.count += 1;
+        }
+
+        synchronized int getCount() {
+            return this.count;
+        }
+
+        // latency in microseconds at the given percentile (0 - 100)
+        synchronized long percentile(double p) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(this.latencies, this.count);
+            Arrays.sort(sorted);
+            int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+        }
+    }
+
+    // connects every contact to the listener under test
+    static final class TargetTransport implements Signaling.Transport {
+        private final InetSocketAddress address;
+        private final int timeout;
+
+        TargetTransport(InetSocketAddress address, int timeout) {
+            this.address = address;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Socket connect(Contact contact) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(this.timeout);
+                socket.connect(this.address, this.timeout);
+                return socket;
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ee) {
+                    // ignore
+                }
+                return null;
+            }
+        }
+    }
+
+    private int peers = 10;
+    private int threads = 0;
+    private int duration = 60;
+    private int interval = 10;
+    private int timeout = 5000;
+    private int thinkTime = 0;
+    private int port = 10001;
+    private String target = null;
+    private String targetKey = null;
+    // weights of ping, call and status
+    private final int[] mix = {80, 10, 10};
+
+    private final Stats[] stats = {
+        new Stats(Operation.PING),
+        new Stats(Operation.CALL),
+        new Stats(Operation.STATUS)
+    };
+    // first error messages
+    private final List<String> errorSamples = new ArrayList<>();
+    private static final int MAX_ERROR_SAMPLES = 10;
+
+    private SimulatedPeer localTarget = null;
+    private Contact targetContact;
+    private TargetTransport transport;
+    private final List<SimulatedPeer> identities = new ArrayList<>();
+    private volatile boolean running = false;
+
+    // offer of a typical audio/video call, large enough to be compressed
+    private static final String OFFER = createOffer();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+        }
+
+        // load the native library
+        NaCl.sodium();
+
+        generator.run();
+    }
+
+    private static void usage() {
+        System.err.println("Options:");
+        System.err.println("  --peers <n>          synthetic identities (10)");
+        System.err.println("  --threads <n>        concurrent connections (number of peers)");
+        System.err.println("  --duration <s>       run time in seconds (60)");
+        System.err.println("  --interval <s>       seconds between reports (10)");
+        System.err.println("  --mix <list>         weights, e.g. ping=80,call=10,status=10");
+        System.err.println("  --think <ms>         pause of each thread between messages (0)");
+        System.err.println("  --timeout <ms>       connect and read timeout (5000)");
+        System.err.println("  --port <port>        port of the local target (10001)");
+        System.err.println("  --target <host:port> external listener instead of a local target");
+        System.err.println("  --target-key <hex>   public key of the external listener");
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i += 1) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+
+            switch (name) {
+                case "--peers":
+                    this.peers = parseInt(name, value, 1);
+                    break;
+                case "--threads":
+                    this.threads = parseInt(name, value, 1);
+                    break;
+                case "--duration":
+                    this.duration = parseInt(name, value, 1);
+                    break;
+                case "--interval":
+                    this.interval = parseInt(name, value, 1);
+                    break;
+                case "--think":
+                    this.thinkTime = parseInt(name, value, 0);
+                    break;
+                case "--timeout":
+                    this.timeout = parseInt(name, value, 1);
+                    break;
+                case "--port":
+                    this.port = parseInt(name, value, 1);
+                    break;
+                case "--target":
+                    this.target = value;
+                    break;
+                case "--target-key":
+                    this.targetKey = value;
+                    break;
+                case "--mix":
+                    parseMix(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        if (this.threads == 0) {
+            this.threads = this.peers;
+        }
+
+        if ((this.target == null) != (this.targetKey == null)) {
+            throw new IllegalArgumentException("--target and --target-key are needed together");
+        }
+    }
+
+    private static int parseInt(String name, String value, int min) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+
+    private void parseMix(String value) {
+        Arrays.fill(this.mix, 0);
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            Operation operation;
+            try {
+                operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + parts[0]);
+            }
+            this.mix[operation.ordinal()] = parseInt("--mix", parts[1].trim(), 0);
+        }
+
+        if (this.mix[0] + this.mix[1] + this.mix[2] == 0) {
+            throw new IllegalArgumentException("Mix has no operations");
+        }
+    }
+
+    private void run() throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        InetSocketAddress address;
+        byte[] publicKey;
+        if (this.target == null) {
+            this.localTarget = new SimulatedPeer("target", this.port, new LoopbackTransport());
+            this.localTarget.start();
+            address = new InetSocketAddress("127.0.0.1", this.port);
+            publicKey = this.localTarget.getPublicKey();
+        } else {
+            address = Utils.parseInetSocketAddress(this.target, MainService.serverPort);
+            if (address == null) {
+                throw new IllegalArgumentException("Invalid target: " + this.target);
+            }
+            publicKey = Utils.hexStringToByteArray(this.targetKey);
+        }
+
+        this.transport = new TargetTransport(address, this.timeout);
+        this.targetContact = new Contact("target", publicKey, new ArrayList<>());
+
+        for (int i = 0; i < this.peers; i += 1) {
+            SimulatedPeer peer = new SimulatedPeer("peer " + i, 0, new LoopbackTransport());
+            if (this.localTarget != null) {
+                // known contacts of the target
+                this.localTarget.addContact(peer);
+            }
+            this.identities.add(peer);
+        }
+
+        System.out.println("target " + address + ", " + this.peers + " peers, " + this.threads
+            + " threads, " + this.duration + "s, mix ping=" + this.mix[0] + " call=" + this.mix[1] + " status=" + this.mix[2]);
+
+        // baseline without load
+        System.gc();
+        int threadsBefore = threadBean.getThreadCount();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        this.running = true;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < this.threads; i += 1) {
+            final int id = i;
+            Thread worker = new Thread(() -> work(id), "load " + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + this.duration * 1000L;
+        long[] lastCounts = new long[this.stats.length];
+        long lastReport = start;
+        int peakThreads = threadBean.getThreadCount();
+
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(this.interval * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            peakThreads = Math.max(peakThreads, threadBean.getThreadCount());
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%6ds", (now - start) / 1000));
+            for (Stats s : this.stats) {
+                long count = s.getCount();
+                double rate = (count - lastCounts[s.operation.ordinal()]) * 1000.0 / Math.max(1, now - lastReport);
+                lastCounts[s.operation.ordinal()] = count;
+                sb.append(String.format("  %s %.0f/s (%d errors)", s.operation.name().toLowerCase(), rate, s.errors.get()));
+            }
+            sb.append(String.format("  threads %d  heap %s", threadBean.getThreadCount(), formatBytes(memory.getHeapMemoryUsage().getUsed())));
+            System.out.println(sb);
+            lastReport = now;
+        }
+
+        this.running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        System.gc();
+        int threadsAfter = threadBean.getThreadCount();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        report(elapsed);
+
+        if (this.localTarget != null) {
+            System.out.println(String.format("local target: threads %d -> %d (peak %d, %d load threads), heap %s -> %s after GC",
+                threadsBefore, threadsAfter, peakThreads, this.threads, formatBytes(heapBefore), formatBytes(heapAfter)));
+            System.out.println(String.format("local target: %d incoming calls, %d closed, %d failed connections",
+                this.localTarget.incomingCalls.get(), this.localTarget.closed.get(), this.localTarget.errors.get()));
+            this.localTarget.stop();
+        }
+
+        for (SimulatedPeer peer : this.identities) {
+            peer.db.onDestroy();
+        }
+    }
+
+    private void work(int id) {
+        Random random = new Random(id);
+        int total = this.mix[0] + this.mix[1] + this.mix[2];
+        int n = id;
+
+        while (this.running) {
+            SimulatedPeer peer = this.identities.get(n % this.identities.size());
+            n += this.threads;
+
+            int r = random.nextInt(total);
+            Operation operation = (r < this.mix[0]) ? Operation.PING
+                : (r < this.mix[0] + this.mix[1]) ? Operation.CALL : Operation.STATUS;
+            Stats s = this.stats[operation.ordinal()];
+
+            long begin = System.nanoTime();
+            try {
+                execute(peer, operation);
+                s.record((System.nanoTime() - begin) / 1000);
+            } catch (Exception e) {
+                s.errors.incrementAndGet();
+                synchronized (this.errorSamples) {
+                    if (this.errorSamples.size() < MAX_ERROR_SAMPLES) {
+                        this.errorSamples.add(operation.name().toLowerCase() + ": " + e);
+                    }
+                }
+            }
+
+            if (this.thinkTime > 0) {
+                try {
+                    Thread.sleep(this.thinkTime);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // one exchange on a new connection, throws on any failure
+    private void execute(SimulatedPeer peer, Operation operation) throws IOException {
+        Socket socket = this.transport.connect(this.targetContact);
+        if (socket == null) {
+            throw new IOException("connect failed");
+        }
+
+        try {
+            Signaling signaling = peer.signaling;
+            PacketWriter pw = new PacketWriter(socket);
+            PacketReader pr = new PacketReader(socket);
+
+            switch (operation) {
+                case PING: {
+                    pw.writeMessage(signaling.encrypt(this.targetContact, Message.ping()));
+                    expect(signaling.decrypt(this.targetContact, pr.readMessage()), Message.Action.PONG);
+                    break;
+                }
+                case CALL: {
+                    // hang up as soon as it rings
+                    pw.writeMessage(signaling.encrypt(this.targetContact, Message.call(OFFER)));
+                    expect(signaling.decrypt(this.targetContact, pr.readMessage()), Message.Action.RINGING);
+                    pw.writeMessage(signaling.encrypt(this.targetContact, Message.dismissed()));
+                    break;
+                }
+                case STATUS: {
+                    // no response
+                    pw.writeMessage(signaling.encrypt(this.targetContact, Message.statusChange("offline")));
+                    break;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void expect(Message message, Message.Action action) throws IOException {
+        if (message == null) {
+            throw new IOException("no valid response");
+        }
+        if (!message.is(action)) {
+            throw new IOException("unexpected response: " + message);
+        }
+    }
+
+    private void report(long elapsed) {
+        System.out.println();
+        System.out.println(String.format("%-8s %10s %8s %8s %10s %10s %10s", "op", "count", "rate/s", "errors", "p50 ms", "p99 ms", "max ms"));
+        for (Stats s : this.stats) {
+            long count = s.getCount();
+            long errors = s.errors.get();
+            double errorRate = (count + errors) > 0 ? 100.0 * errors / (count + errors) : 0;
+            System.out.println(String.format("%-8s %10d %8.1f %7.2f%% %10.2f %10.2f %10.2f",
+                s.operation.name().toLowerCase(),
+                count,
+                count * 1000.0 / Math.max(1, elapsed),
+                errorRate,
+                s.percentile(50) / 1000.0,
+                s.percentile(99) / 1000.0,
+                s.percentile(100) / 1000.0
+            ));
+        }
+
+        if (!this.errorSamples.isEmpty()) {
+            System.out.println();
+            System.out.println("first errors:");
+            for (String error : this.errorSamples) {
+                System.out.println("  " + error);
+            }
+        }
+        System.out.println();
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String createOffer() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n");
+        sb.append("a=group:BUNDLE audio video data\r\na=msid-semantic: WMS stream\r\n");
+        String[] media = {"audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8", "video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100"};
+        for (String m : media) {
+            sb.append("m=").append(m).append("\r\nc=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\n");
+            sb.append("a=ice-ufrag:Xk3f\r\na=ice-pwd:x2Hs9bE1LqRk0pZc7vTqYw4n\r\n");
+            sb.append("a=fingerprint:sha-256 4A:AD:B9:B1:3F:82:18:3B:54:02:12:DF:3E:5D:49:6B:19:E5:7C:AB:3A:4C:7D:8E:9F:A0:B1:C2:D3:E4:F5:06\r\n");
+            sb.append("a=setup:actpass\r\na=sendrecv\r\na=rtcp-mux\r\n");
+            for (int pt = 96; pt < 112; pt += 1) {
+                sb.append("a=rtpmap:").append(pt).append(" codec").append(pt).append("/90000\r\n");
+                sb.append("a=rtcp-fb:").append(pt).append(" nack\r\n");
+            }
+            sb.append("a=candidate:1 1 udp 2122260223 192.168.1.23 54321 typ host generation 0\r\n");
+            sb.append("a=candidate:2 1 udp 2122194687 fe80::1c2b:3cff:fe4d:5e6f 54322 typ host generation 0\r\n");
+        }
+        return sb.toString();
+    }
+}
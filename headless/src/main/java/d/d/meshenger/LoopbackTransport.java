@@ -0,0 +1,50 @@
+package d.d.meshenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/*
+* Connect to simulated peers on the loopback interface.
+* Peers are found by public key, contact addresses are not used.
+*/
+class LoopbackTransport implements Signaling.Transport {
+    static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private final InetAddress loopback;
+    private final ConcurrentHashMap<ContactRegistry.Key, Integer> ports;
+
+    LoopbackTransport() {
+        this.loopback = InetAddress.getLoopbackAddress();
+        this.ports = new ConcurrentHashMap<>();
+    }
+
+    void register(byte[] publicKey, int port) {
+        this.ports.put(new ContactRegistry.Key(publicKey.clone()), port);
+    }
+
+    @Override
+    public Socket connect(Contact contact) {
+        Integer port = this.ports.get(new ContactRegistry.Key(contact.getPublicKey()));
+        if (port == null) {
+            return null;
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(this.loopback, port), CONNECT_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ee) {
+                // ignore
+            }
+            return null;
+        }
+    }
+}
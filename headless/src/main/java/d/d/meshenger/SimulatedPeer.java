@@ -0,0 +1,156 @@
+package d.d.meshenger;
+
+import org.libsodium.jni.Sodium;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+* A peer with its own keys, contacts and listener, many of them
+* can run in the same JVM. Incoming calls are answered right away,
+* so the signaling can be measured without WebRTC.
+*/
+class SimulatedPeer implements Signaling.Events {
+    final String name;
+    final int port;
+    final Database db;
+    final Signaling signaling;
+    private final LoopbackTransport transport;
+    private final ConnectionServer server;
+    private Thread thread;
+    // answer incoming calls with connected instead of dismissed
+    private volatile boolean acceptCalls;
+
+    // received events
+    final AtomicLong contactStates = new AtomicLong();
+    final AtomicLong incomingCalls = new AtomicLong();
+    final AtomicLong blocked = new AtomicLong();
+    final AtomicLong closed = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    SimulatedPeer(String name, int port, LoopbackTransport transport) {
+        byte[] publicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] secretKey = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(publicKey, secretKey);
+
+        this.name = name;
+        this.port = port;
+        this.db = new Database();
+        this.db.settings.setUsername(name);
+        this.db.settings.setPublicKey(publicKey);
+        this.db.settings.setSecretKey(secretKey);
+
+        this.transport = transport;
+        this.transport.register(publicKey, port);
+        this.signaling = new Signaling(this, transport, port);
+        this.signaling.setDatabase(this.db);
+        this.server = new ConnectionServer(port, this.signaling);
+        this.acceptCalls = true;
+    }
+
+    byte[] getPublicKey() {
+        return this.db.settings.getPublicKey();
+    }
+
+    void setAcceptCalls(boolean acceptCalls) {
+        this.acceptCalls = acceptCalls;
+    }
+
+    // listen for incoming connections
+    void start() throws IOException {
+        this.server.open();
+        this.thread = new Thread(this.server, "peer " + this.name);
+        this.thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        this.server.close();
+        if (this.thread != null) {
+            this.thread.join();
+            this.thread = null;
+        }
+        this.db.onDestroy();
+    }
+
+    // add the other peer as contact
+    Contact addContact(SimulatedPeer other) {
+        Contact contact = new Contact(other.name, other.getPublicKey().clone(), new ArrayList<>());
+        this.db.addContact(contact);
+        return contact;
+    }
+
+    Contact.State ping(Contact contact) {
+        Contact.State state = this.signaling.ping(contact);
+        if (state != null) {
+            contact.getAndSetState(state);
+        }
+        return state;
+    }
+
+    // signal a call and hang up after the answer
+    Message call(Contact contact, String offer, Signaling.CallListener listener) throws IOException {
+        Socket[] socket = new Socket[1];
+        Tracer.Trace trace = Tracer.start("simulated call " + this.name);
+        try {
+            Message response = this.signaling.call(contact, offer, new Signaling.CallListener() {
+                @Override
+                public void onConnecting(Socket s) {
+                    socket[0] = s;
+                    listener.onConnecting(s);
+                }
+
+                @Override
+                public void onRinging() {
+                    listener.onRinging();
+                }
+            }, trace);
+            trace.finish(response.action.name);
+            return response;
+        } catch (IOException e) {
+            trace.finish("error");
+            throw e;
+        } finally {
+            if (socket[0] != null) {
+                socket[0].close();
+            }
+        }
+    }
+
+    @Override
+    public void onContactState(byte[] publicKey, Contact.State state) {
+        this.contactStates.incrementAndGet();
+        Contact contact = this.db.contacts.get(publicKey);
+        if (contact != null) {
+            contact.getAndSetState(state);
+        }
+    }
+
+    @Override
+    public void onIncomingCall(Contact contact, Socket socket, String offer) throws Exception {
+        this.incomingCalls.incrementAndGet();
+        try {
+            Message answer = this.acceptCalls ? Message.connected("answer from " + this.name) : Message.dismissed();
+            this.signaling.send(socket, contact, answer);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void onBlocked(byte[] publicKey) {
+        this.blocked.incrementAndGet();
+    }
+
+    @Override
+    public void onConnectionClosed() {
+        this.closed.incrementAndGet();
+    }
+
+    @Override
+    public void onConnectionError(Exception e) {
+        this.errors.incrementAndGet();
+    }
+}
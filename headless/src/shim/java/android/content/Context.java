@@ -0,0 +1,14 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+
+
+public abstract class Context {
+    public PackageManager getPackageManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getPackageName() {
+        throw new UnsupportedOperationException();
+    }
+}
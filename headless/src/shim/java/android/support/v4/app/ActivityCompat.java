@@ -0,0 +1,10 @@
+package android.support.v4.app;
+
+import android.app.Activity;
+
+
+public class ActivityCompat {
+    public static void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,8 @@
+package android.system;
+
+
+public class ErrnoException extends Exception {
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: " + errno);
+    }
+}
@@ -0,0 +1,17 @@
+package android.system;
+
+import java.io.FileDescriptor;
+
+
+// stand-in, directories are not synced on the JVM
+public class Os {
+    public static FileDescriptor open(String path, int flags, int mode) throws ErrnoException {
+        return new FileDescriptor();
+    }
+
+    public static void fsync(FileDescriptor fd) throws ErrnoException {
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+    }
+}
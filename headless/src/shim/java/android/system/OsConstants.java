@@ -0,0 +1,6 @@
+package android.system;
+
+
+public class OsConstants {
+    public static final int O_RDONLY = 0;
+}
@@ -0,0 +1,15 @@
+package android.text;
+
+
+public class TextUtils {
+    public static String join(CharSequence delimiter, Iterable tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (Object token : tokens) {
+            if (sb.length() > 0) {
+                sb.append(delimiter);
+            }
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,7 @@
+package d.d.meshenger;
+
+
+public final class BuildConfig {
+    // no debug output while measuring
+    public static final boolean DEBUG = false;
+}
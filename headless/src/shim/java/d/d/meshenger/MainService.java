@@ -0,0 +1,7 @@
+package d.d.meshenger;
+
+
+/* Only the constants used by the app sources of the benchmarks */
+class MainService {
+    public static final int serverPort = 10001;
+}
@@ -0,0 +1,237 @@
+package d.d.meshenger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+// the journal without password, the records are not encrypted
+public class DatabaseJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+
+    @Before
+    public void setup() {
+        this.path = new File(this.folder.getRoot(), "database.bin").getPath();
+    }
+
+    private static Contact contact(String name, int id) {
+        byte[] publicKey = new byte[32];
+        publicKey[0] = (byte) id;
+        return new Contact(name, publicKey, new ArrayList<String>());
+    }
+
+    private static JSONObject database(long sequence, Contact... contacts) throws Exception {
+        JSONArray array = new JSONArray();
+        for (Contact contact : contacts) {
+            array.put(Contact.exportJSON(contact, true));
+        }
+
+        JSONObject db = new JSONObject();
+        db.put("contacts", array);
+        db.put("journal_sequence", sequence);
+        return db;
+    }
+
+    private static String names(JSONObject db) throws Exception {
+        JSONArray contacts = db.getJSONArray("contacts");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < contacts.length(); i += 1) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(contacts.getJSONObject(i).getString("name"));
+        }
+        return sb.toString();
+    }
+
+    private DatabaseJournal open(JSONObject db) throws Exception {
+        DatabaseJournal journal = new DatabaseJournal(this.path);
+        journal.open(db, "", null);
+        return journal;
+    }
+
+    private void append(byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.path + DatabaseJournal.SUFFIX, true);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private long journalLength() {
+        return new File(this.path + DatabaseJournal.SUFFIX).length();
+    }
+
+    @Test
+    public void replaysRecords() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        journal.writeRecord(journal.putContact(contact("bob", 2)));
+        journal.writeRecord(journal.putContact(contact("carol", 3)));
+        journal.writeRecord(journal.deleteContact(contact("alice", 1).getPublicKey()));
+        // replaces the existing entry
+        journal.writeRecord(journal.putContact(contact("bobby", 2)));
+        assertEquals(5, journal.getSequence());
+        journal.close();
+
+        JSONObject db = database(0);
+        journal = open(db);
+        assertEquals("bobby,carol", names(db));
+        assertEquals(5, db.getLong("journal_sequence"));
+        assertEquals(5, journal.getSequence());
+        assertEquals(5, journal.getRecordCount());
+        assertEquals(journalLength(), journal.getSize());
+    }
+
+    @Test
+    public void skipsRecordsOfDatabase() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        journal.writeRecord(journal.putContact(contact("bob", 2)));
+        journal.close();
+
+        // database file written after the first record
+        JSONObject db = database(1, contact("alice", 1));
+        open(db);
+        assertEquals("alice,bob", names(db));
+        assertEquals(2, db.getLong("journal_sequence"));
+    }
+
+    @Test
+    public void cutsOffTornRecord() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        journal.writeRecord(journal.putContact(contact("bob", 2)));
+        long length = journalLength();
+
+        // crash in the middle of a write
+        byte[] record = journal.putContact(contact("carol", 3));
+        byte[] torn = new byte[record.length / 2];
+        System.arraycopy(record, 0, torn, 0, torn.length);
+        append(torn);
+        journal.close();
+
+        JSONObject db = database(0);
+        journal = open(db);
+        assertEquals("alice,bob", names(db));
+        assertEquals(length, journalLength());
+        assertEquals(2, journal.getSequence());
+
+        // the next record follows the last good one
+        journal.writeRecord(journal.putContact(contact("dave", 4)));
+        journal.close();
+
+        db = database(0);
+        open(db);
+        assertEquals("alice,bob,dave", names(db));
+        assertEquals(3, db.getLong("journal_sequence"));
+    }
+
+    @Test
+    public void cutsOffDamagedRecord() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        long length = journalLength();
+
+        // complete record with a damaged payload, followed by a good one
+        byte[] record = journal.putContact(contact("bob", 2));
+        record[4] = 'x';
+        append(record);
+        journal.writeRecord(journal.putContact(contact("carol", 3)));
+        journal.close();
+
+        JSONObject db = database(0);
+        open(db);
+        assertEquals("alice", names(db));
+        assertEquals(length, journalLength());
+    }
+
+    @Test
+    public void ignoresInvalidHeader() throws Exception {
+        append(new byte[]{'J', 'U', 'N', 'K', 1, 0});
+
+        JSONObject db = database(7, contact("alice", 1));
+        DatabaseJournal journal = open(db);
+        assertEquals("alice", names(db));
+        assertEquals(7, journal.getSequence());
+        assertEquals(0, journal.getRecordCount());
+        assertEquals(journalLength(), journal.getSize());
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        long header = journalLength();
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        journal.writeRecord(journal.putContact(contact("bob", 2)));
+
+        journal.truncate(2);
+        assertEquals(0, journal.getRecordCount());
+        assertEquals(header, journalLength());
+        assertEquals(header, journal.getSize());
+
+        // sequence numbers continue
+        journal.writeRecord(journal.putContact(contact("carol", 3)));
+        journal.close();
+
+        JSONObject db = database(2, contact("alice", 1), contact("bob", 2));
+        open(db);
+        assertEquals("alice,bob,carol", names(db));
+        assertEquals(3, db.getLong("journal_sequence"));
+    }
+
+    @Test
+    public void truncateKeepsNewerRecords() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        long header = journalLength();
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        byte[] record = journal.putContact(contact("bob", 2));
+        journal.writeRecord(record);
+
+        // the database was captured after the first record
+        journal.truncate(1);
+        assertEquals(1, journal.getRecordCount());
+        assertEquals(header + record.length, journalLength());
+        assertEquals(journalLength(), journal.getSize());
+        assertFalse(new File(this.path + DatabaseJournal.SUFFIX + ".tmp").exists());
+        journal.close();
+
+        JSONObject db = database(1, contact("alice", 1));
+        open(db);
+        assertEquals("alice,bob", names(db));
+        assertEquals(2, db.getLong("journal_sequence"));
+    }
+
+    @Test
+    public void truncateCountsPendingRecords() throws Exception {
+        DatabaseJournal journal = open(database(0));
+        journal.writeRecord(journal.putContact(contact("alice", 1)));
+        // encoded, but not written yet when the database file is done
+        byte[] record = journal.putContact(contact("bob", 2));
+
+        journal.truncate(1);
+        assertEquals(1, journal.getRecordCount());
+        journal.writeRecord(record);
+        assertEquals(journalLength(), journal.getSize());
+        journal.close();
+
+        JSONObject db = database(1, contact("alice", 1));
+        open(db);
+        assertEquals("alice,bob", names(db));
+    }
+}
@@ -0,0 +1,98 @@
+package d.d.meshenger;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+// the connection history is global, every test uses its own ports
+public class DialerTest {
+    private static InetSocketAddress ipv4(int host, int port) {
+        return new InetSocketAddress("192.168.1." + host, port);
+    }
+
+    private static InetSocketAddress ipv6(int host, int port) {
+        return new InetSocketAddress("fe80::" + host, port);
+    }
+
+    private static List<InetSocketAddress> list(InetSocketAddress... addresses) {
+        return Arrays.asList(addresses);
+    }
+
+    // timestamps have a resolution of milliseconds
+    private static void tick() throws InterruptedException {
+        Thread.sleep(5);
+    }
+
+    @Test
+    public void interleavesAddressFamilies() {
+        InetSocketAddress a4 = ipv4(1, 1001);
+        InetSocketAddress b4 = ipv4(2, 1001);
+        InetSocketAddress c4 = ipv4(3, 1001);
+        InetSocketAddress a6 = ipv6(1, 1001);
+
+        assertEquals(list(a6, a4, b4, c4), Dialer.rank(null, list(a4, b4, a6, c4)));
+    }
+
+    @Test
+    public void removesDuplicates() {
+        InetSocketAddress a4 = ipv4(1, 1002);
+        InetSocketAddress b4 = ipv4(2, 1002);
+
+        assertEquals(list(a4, b4), Dialer.rank(null, list(a4, null, b4, ipv4(1, 1002), b4)));
+    }
+
+    @Test
+    public void preferredFirst() {
+        InetSocketAddress a4 = ipv4(1, 1003);
+        InetSocketAddress b4 = ipv4(2, 1003);
+        InetSocketAddress a6 = ipv6(1, 1003);
+
+        // also before addresses that have connected recently
+        Dialer.recordSuccess(a6);
+        assertEquals(list(b4, a6, a4), Dialer.rank(b4, list(a4, b4, a6)));
+
+        // not in the list
+        InetSocketAddress c4 = ipv4(3, 1003);
+        assertEquals(list(c4, a6, a4, b4), Dialer.rank(c4, list(a4, b4, a6)));
+    }
+
+    @Test
+    public void successFirstFailureLast() throws InterruptedException {
+        InetSocketAddress a4 = ipv4(1, 1004);
+        InetSocketAddress b4 = ipv4(2, 1004);
+        InetSocketAddress c4 = ipv4(3, 1004);
+        InetSocketAddress d4 = ipv4(4, 1004);
+
+        Dialer.recordFailure(a4);
+        Dialer.recordSuccess(c4);
+        assertEquals(list(c4, b4, d4, a4), Dialer.rank(null, list(a4, b4, c4, d4)));
+
+        // latest success first, oldest failure first
+        tick();
+        Dialer.recordSuccess(d4);
+        tick();
+        Dialer.recordFailure(b4);
+        assertEquals(list(d4, c4, a4, b4), Dialer.rank(null, list(a4, b4, c4, d4)));
+
+        // a success clears the failure
+        tick();
+        Dialer.recordSuccess(a4);
+        assertEquals(list(a4, d4, c4, b4), Dialer.rank(null, list(a4, b4, c4, d4)));
+    }
+
+    @Test
+    public void failureAfterSuccess() throws InterruptedException {
+        InetSocketAddress a4 = ipv4(1, 1005);
+        InetSocketAddress b4 = ipv4(2, 1005);
+
+        Dialer.recordSuccess(a4);
+        tick();
+        Dialer.recordFailure(a4);
+        assertEquals(list(b4, a4), Dialer.rank(null, list(a4, b4)));
+    }
+}
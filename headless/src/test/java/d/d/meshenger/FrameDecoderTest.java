@@ -0,0 +1,169 @@
+package d.d.meshenger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class FrameDecoderTest {
+    // returns at most chunk bytes per read, like a socket
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream is;
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            this.is = new ByteArrayInputStream(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.is.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.is.read(b, off, Math.min(len, this.chunk));
+        }
+    }
+
+    private static List<byte[]> messages(int... sizes) {
+        Random random = new Random(42);
+        List<byte[]> messages = new ArrayList<>();
+        for (int size : sizes) {
+            byte[] message = new byte[size];
+            random.nextBytes(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // all frames in a single buffer
+    private static byte[] encode(List<byte[]> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        for (byte[] message : messages) {
+            writer.queueMessage(message);
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] header(int length) {
+        return ByteBuffer.allocate(4).putInt(length).array();
+    }
+
+    private static void assertReads(List<byte[]> messages, InputStream is) throws IOException {
+        PacketReader reader = new PacketReader(is);
+        for (byte[] message : messages) {
+            assertArrayEquals(message, reader.readMessage());
+        }
+        assertNull(reader.readMessage());
+    }
+
+    @Test
+    public void pipelinedFrames() throws IOException {
+        // all frames arrive with a single read
+        List<byte[]> messages = messages(0, 1, 100, 5000, 3, 9000, 2);
+        byte[] data = encode(messages);
+        assertTrue(data.length < FrameDecoder.INITIAL_CAPACITY);
+        assertReads(messages, new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void splitFrames() throws IOException {
+        List<byte[]> messages = messages(10, 7000, 7000, 7000, 1, 15000, 0, 4);
+        byte[] data = encode(messages);
+        for (int chunk : new int[]{1, 3, 4, 5, 1000, 6999, 16 * 1024}) {
+            assertReads(messages, new ChunkedInputStream(data, chunk));
+        }
+    }
+
+    @Test
+    public void largeFrames() throws IOException {
+        List<byte[]> messages = messages(20 * 1024, 10, 100 * 1024, FrameDecoder.MAX_FRAME_SIZE, 5);
+        byte[] data = encode(messages);
+        assertReads(messages, new ByteArrayInputStream(data));
+        assertReads(messages, new ChunkedInputStream(data, 1500));
+    }
+
+    @Test
+    public void directBuffer() throws IOException {
+        // frames that do not fit behind the head move the pending bytes to the front
+        List<byte[]> messages = messages(6000, 6000, 6000, 6000, 30000, 6000, 1);
+        byte[] data = encode(messages);
+
+        for (int chunk : new int[]{1000, 7000}) {
+            FrameDecoder decoder = new FrameDecoder(true);
+            ReadableByteChannel channel = Channels.newChannel(new ChunkedInputStream(data, chunk));
+            for (byte[] message : messages) {
+                ByteBuffer frame;
+                while ((frame = decoder.nextFrame()) == null) {
+                    assertTrue(decoder.readFrom(channel) > 0);
+                }
+                byte[] received = new byte[frame.remaining()];
+                frame.get(received);
+                assertArrayEquals(message, received);
+            }
+            assertEquals(0, decoder.available());
+        }
+    }
+
+    @Test
+    public void rejectsOversizeFrame() throws IOException {
+        byte[] data = header(FrameDecoder.MAX_FRAME_SIZE + 1);
+        PacketReader reader = new PacketReader(new ByteArrayInputStream(data));
+        assertNull(reader.readMessage());
+        assertTrue(reader.decoder.isInvalid());
+
+        reader = new PacketReader(new ByteArrayInputStream(header(-1)));
+        assertNull(reader.readMessage());
+        assertTrue(reader.decoder.isInvalid());
+
+        // the writer does not send such frames either
+        try {
+            new PacketWriter(new ByteArrayOutputStream()).writeMessage(new byte[FrameDecoder.MAX_FRAME_SIZE + 1]);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOversizeFrameAfterValidFrames() throws IOException {
+        List<byte[]> messages = messages(10, 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encode(messages));
+        out.write(header(Integer.MAX_VALUE));
+
+        PacketReader reader = new PacketReader(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(messages.get(0), reader.readMessage());
+        assertArrayEquals(messages.get(1), reader.readMessage());
+        assertNull(reader.readMessage());
+        assertTrue(reader.decoder.isInvalid());
+    }
+
+    @Test
+    public void truncatedFrame() throws IOException {
+        byte[] data = encode(messages(100));
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        PacketReader reader = new PacketReader(new ByteArrayInputStream(truncated));
+        assertNull(reader.readMessage());
+    }
+}
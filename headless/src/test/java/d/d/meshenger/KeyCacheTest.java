@@ -0,0 +1,140 @@
+package d.d.meshenger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.libsodium.jni.Sodium;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class KeyCacheTest {
+    private byte[] publicKey;
+    private byte[] secretKey;
+
+    @Before
+    public void setup() {
+        TestSodium.assumeAvailable();
+        this.publicKey = new byte[Sodium.crypto_sign_publickeybytes()];
+        this.secretKey = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(this.publicKey, this.secretKey);
+    }
+
+    @After
+    public void teardown() {
+        KeyCache.clear();
+    }
+
+    private static byte[] convertPublicKey(byte[] pk_sign) {
+        byte[] pk_box = new byte[Sodium.crypto_box_publickeybytes()];
+        Sodium.crypto_sign_ed25519_pk_to_curve25519(pk_box, pk_sign);
+        return pk_box;
+    }
+
+    private static byte[] newPublicKey() {
+        byte[] pk = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] sk = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(pk, sk);
+        return pk;
+    }
+
+    @Test
+    public void cachesPublicKeys() {
+        byte[] expected = convertPublicKey(this.publicKey);
+        byte[] out = new byte[Sodium.crypto_box_publickeybytes()];
+
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(expected, out);
+
+        // changes of the returned key do not reach the cache
+        Arrays.fill(out, (byte) 0);
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void copiesMapKey() {
+        byte[] pk_sign = this.publicKey.clone();
+        byte[] out = new byte[Sodium.crypto_box_publickeybytes()];
+        assertTrue(KeyCache.getBoxPublicKey(pk_sign, out));
+
+        // the caller may reuse its array
+        byte[] other = newPublicKey();
+        System.arraycopy(other, 0, pk_sign, 0, pk_sign.length);
+        assertTrue(KeyCache.getBoxPublicKey(pk_sign, out));
+        assertArrayEquals(convertPublicKey(other), out);
+
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(convertPublicKey(this.publicKey), out);
+    }
+
+    @Test
+    public void evictsOldEntries() {
+        byte[] out = new byte[Sodium.crypto_box_publickeybytes()];
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+
+        for (int i = 0; i < KeyCache.MAX_ENTRIES + 1; i += 1) {
+            assertTrue(KeyCache.getBoxPublicKey(newPublicKey(), out));
+        }
+
+        // converted again after eviction
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(convertPublicKey(this.publicKey), out);
+    }
+
+    @Test
+    public void removeAndClear() {
+        byte[] copy = this.publicKey.clone();
+        byte[] out = new byte[Sodium.crypto_box_publickeybytes()];
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+
+        KeyCache.remove(this.publicKey);
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(convertPublicKey(this.publicKey), out);
+
+        KeyCache.clear();
+        // only the copies of the cache are zeroed
+        assertArrayEquals(copy, this.publicKey);
+        assertTrue(KeyCache.getBoxPublicKey(this.publicKey, out));
+        assertArrayEquals(convertPublicKey(this.publicKey), out);
+    }
+
+    @Test
+    public void ownKeyPair() {
+        byte[] pk_box = new byte[Sodium.crypto_box_publickeybytes()];
+        byte[] sk_box = new byte[Sodium.crypto_box_secretkeybytes()];
+        byte[] expected = new byte[Sodium.crypto_box_secretkeybytes()];
+        Sodium.crypto_sign_ed25519_sk_to_curve25519(expected, this.secretKey);
+
+        assertTrue(KeyCache.getOwnBoxKeyPair(this.publicKey, this.secretKey, pk_box, sk_box));
+        assertArrayEquals(convertPublicKey(this.publicKey), pk_box);
+        assertArrayEquals(expected, sk_box);
+
+        // a new identity replaces the cached keys
+        byte[] pk = new byte[Sodium.crypto_sign_publickeybytes()];
+        byte[] sk = new byte[Sodium.crypto_sign_secretkeybytes()];
+        Sodium.crypto_sign_keypair(pk, sk);
+        Sodium.crypto_sign_ed25519_sk_to_curve25519(expected, sk);
+
+        assertTrue(KeyCache.getOwnBoxKeyPair(pk, sk, pk_box, sk_box));
+        assertArrayEquals(convertPublicKey(pk), pk_box);
+        assertArrayEquals(expected, sk_box);
+    }
+
+    @Test
+    public void rejectsInvalidSizes() {
+        byte[] out = new byte[Sodium.crypto_box_publickeybytes()];
+        byte[] sk_box = new byte[Sodium.crypto_box_secretkeybytes()];
+
+        assertFalse(KeyCache.getBoxPublicKey(null, out));
+        assertFalse(KeyCache.getBoxPublicKey(new byte[3], out));
+        assertFalse(KeyCache.getBoxPublicKey(this.publicKey, new byte[3]));
+
+        assertFalse(KeyCache.getOwnBoxKeyPair(this.publicKey, new byte[3], out, sk_box));
+        assertFalse(KeyCache.getOwnBoxKeyPair(this.publicKey, this.secretKey, out, new byte[3]));
+    }
+}
@@ -0,0 +1,149 @@
+package d.d.meshenger;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessageTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String sdp(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i += 1) {
+            sb.append("a=candidate:").append(i).append(" 1 udp 2122260223 192.168.1.").append(i % 256).append(" 5000").append(i).append(" typ host\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static Message roundTrip(Message message, boolean binary) {
+        Message decoded = Message.decode(message.encode(binary));
+        assertNotNull(decoded);
+        assertEquals(message.action, decoded.action);
+        assertEquals(message.sdp, decoded.sdp);
+        assertEquals(message.status, decoded.status);
+        assertArrayEquals(message.sessionKey, decoded.sessionKey);
+        assertEquals(Message.VERSION, decoded.version);
+        return decoded;
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        byte[] key = {1, 2, 3, (byte) 0xff};
+        roundTrip(Message.ping(), true);
+        roundTrip(Message.pong(), true);
+        roundTrip(Message.call("v=0\r\n"), true);
+        roundTrip(Message.ringing(), true);
+        roundTrip(Message.connected("v=0\r\n\u00f6"), true);
+        roundTrip(Message.dismissed(), true);
+        roundTrip(Message.statusChange("busy"), true);
+        roundTrip(Message.controlOpen(key), true);
+        roundTrip(Message.controlAck(key), true);
+    }
+
+    @Test
+    public void jsonRoundTrip() {
+        byte[] key = {1, 2, 3, (byte) 0xff};
+        roundTrip(Message.ping(), false);
+        roundTrip(Message.call("v=0\r\n"), false);
+        roundTrip(Message.connected("v=0\r\n\u00f6"), false);
+        roundTrip(Message.statusChange("busy"), false);
+        roundTrip(Message.controlOpen(key), false);
+        roundTrip(Message.controlAck(key), false);
+    }
+
+    @Test
+    public void compressesLargeSdp() {
+        Message message = Message.call(sdp(100));
+        byte[] binary = message.encode(true);
+        assertTrue(binary.length < message.sdp.length() / 2);
+        roundTrip(message, true);
+    }
+
+    @Test
+    public void decodesJsonOfOlderVersions() {
+        byte[] data = "{\"action\":\"call\",\"offer\":\"v=0\"}".getBytes(UTF8);
+        Message message = Message.decode(data);
+        assertNotNull(message);
+        assertEquals(Message.Action.CALL, message.action);
+        assertEquals("v=0", message.sdp);
+        assertEquals(0, message.version);
+    }
+
+    @Test
+    public void keepsUnknownActions() {
+        Message json = Message.decode("{\"action\":\"future\"}".getBytes(UTF8));
+        assertNotNull(json);
+        assertNull(json.action);
+        assertEquals("future", json.unknownAction);
+
+        Message binary = Message.decode(new byte[]{0, 2, (byte) 200, 9, 1, 0});
+        assertNotNull(binary);
+        assertNull(binary.action);
+    }
+
+    @Test
+    public void skipsFieldsOfNewerVersions() {
+        byte[] encoded = Message.statusChange("busy").encode(true);
+        byte[] data = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, data, 0, encoded.length);
+        // field 99 with 2 bytes
+        data[encoded.length] = 99;
+        data[encoded.length + 1] = 2;
+
+        Message message = Message.decode(data);
+        assertNotNull(message);
+        assertEquals("busy", message.status);
+    }
+
+    @Test
+    public void rejectsInvalidMessages() {
+        assertNull(Message.decode(new byte[0]));
+        assertNull(Message.decode("{".getBytes(UTF8)));
+        // call without offer
+        assertNull(Message.decode("{\"action\":\"call\"}".getBytes(UTF8)));
+        assertNull(Message.decode(new byte[]{0, 1}));
+
+        // field size beyond the end of the message
+        byte[] data = Message.statusChange("busy").encode(true);
+        data[4] = 100;
+        assertNull(Message.decode(data));
+
+        // truncated message
+        byte[] large = Message.call(sdp(100)).encode(true);
+        byte[] truncated = new byte[large.length - 10];
+        System.arraycopy(large, 0, truncated, 0, truncated.length);
+        assertNull(Message.decode(truncated));
+    }
+
+    @Test
+    public void decodesWithOffset() {
+        byte[] encoded = Message.statusChange("away").encode(true);
+        byte[] data = new byte[encoded.length + 8];
+        System.arraycopy(encoded, 0, data, 3, encoded.length);
+
+        Message message = Message.decode(data, 3, encoded.length);
+        assertNotNull(message);
+        assertEquals("away", message.status);
+    }
+
+    @Test
+    public void remembersVersions() {
+        byte[] publicKey = {42, 43, 44};
+        assertTrue(!Message.supportsBinary(publicKey));
+        assertTrue(Message.ping().encodeFor(publicKey)[0] == '{');
+
+        Message.setVersion(publicKey, 1);
+        assertTrue(Message.supportsBinary(publicKey));
+        assertEquals(0, Message.ping().encodeFor(publicKey)[0]);
+
+        Message.setVersion(publicKey, 0);
+        assertTrue(!Message.supportsBinary(publicKey));
+    }
+}
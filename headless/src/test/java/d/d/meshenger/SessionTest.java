@@ -0,0 +1,89 @@
+package d.d.meshenger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SessionTest {
+    private Crypto.Session client;
+    private Crypto.Session server;
+
+    @Before
+    public void setup() {
+        TestSodium.assumeAvailable();
+        this.client = new Crypto.Session();
+        this.server = new Crypto.Session();
+        assertTrue(this.client.establish(this.server.getPublicKey(), true));
+        assertTrue(this.server.establish(this.client.getPublicKey(), false));
+    }
+
+    @Test
+    public void roundTrip() {
+        for (int i = 0; i < 3; i += 1) {
+            assertEquals("ping " + i, this.server.decrypt(this.client.encrypt("ping " + i)));
+            assertEquals("pong " + i, this.client.decrypt(this.server.encrypt("pong " + i)));
+        }
+
+        byte[] data = {0, 1, 2, (byte) 0xff};
+        byte[] packet = this.client.encrypt(data);
+        assertEquals(Crypto.Session.getPacketSize(data.length), packet.length);
+        assertArrayEquals(data, this.server.decryptData(packet));
+    }
+
+    @Test
+    public void rejectsReplay() {
+        byte[] packet = this.client.encrypt("call");
+        assertEquals("call", this.server.decrypt(packet));
+        assertNull(this.server.decrypt(packet));
+
+        // the session is still usable
+        assertEquals("next", this.server.decrypt(this.client.encrypt("next")));
+    }
+
+    @Test
+    public void rejectsOutOfOrder() {
+        byte[] first = this.client.encrypt("first");
+        byte[] second = this.client.encrypt("second");
+
+        assertEquals("second", this.server.decrypt(second));
+        assertNull(this.server.decrypt(first));
+    }
+
+    @Test
+    public void rejectsOwnPackets() {
+        // other nonce space, a reflected packet does not decrypt
+        byte[] packet = this.client.encrypt("echo");
+        assertNull(this.client.decrypt(packet));
+    }
+
+    @Test
+    public void tamperingDoesNotAdvanceCounter() {
+        byte[] packet = this.client.encrypt("data");
+        byte[] tampered = packet.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertNull(this.server.decrypt(tampered));
+
+        // the failed packet must not block the genuine one
+        assertEquals("data", this.server.decrypt(packet));
+    }
+
+    @Test
+    public void rejectsInvalidInput() {
+        Crypto.Session session = new Crypto.Session();
+        assertNull(session.encrypt("not established"));
+        assertFalse(session.establish(null, true));
+        assertFalse(session.establish(new byte[3], true));
+
+        assertFalse(this.client.establish(this.server.getPublicKey(), true));
+        assertNull(this.server.decryptData(null));
+        assertNull(this.server.decryptData(new byte[8]));
+        assertNotNull(this.server.decryptData(this.client.encrypt(new byte[0])));
+    }
+}
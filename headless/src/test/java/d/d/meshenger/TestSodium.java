@@ -0,0 +1,16 @@
+package d.d.meshenger;
+
+import org.junit.Assume;
+import org.libsodium.jni.NaCl;
+
+
+// skip tests that need the native libsodium library if it cannot be loaded
+class TestSodium {
+    static void assumeAvailable() {
+        try {
+            NaCl.sodium();
+        } catch (LinkageError e) {
+            Assume.assumeNoException(e);
+        }
+    }
+}